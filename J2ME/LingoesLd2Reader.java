@@ -19,7 +19,7 @@
  *  THE SOFTWARE.
  */
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -38,10 +38,25 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 import java.util.zip.Inflater;
 import java.util.zip.Deflater;
 import java.util.zip.InflaterInputStream;
@@ -51,6 +66,9 @@ import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 /**
  * Lingoes LD2/LDF File Reader
  *
@@ -91,28 +109,44 @@ public class LingoesLd2Reader {
             new SensitiveStringDecoder(Charset.forName("UTF-8")),
             new SensitiveStringDecoder(Charset.forName("EUC-JP")) };
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    // the archive written, -Ddd.archive=2 for a second pack in the same jar, -Ddd.output for another path altogether
+    private static final String ARCHIVE_FILE = System.getProperty("dd.output",
+            "C:\\dict\\out\\" + System.getProperty("dd.archive", "1") + ".dda");
+
     public static void main(String[] args) throws IOException {
-        String ld2File = "C:\\dict\\1.ldx";
+        // -Ddd.input to read another file
+        String ld2File = System.getProperty("dd.input", "C:\\dict\\1.ldx");
 
-        // read lingoes ld2 into byte array
-        FileChannel fChannel = new RandomAccessFile(ld2File, "r").getChannel();
-        ByteBuffer dataRawBytes = ByteBuffer.allocate((int) fChannel.size());
+        // map lingoes ld2 read-only, all offsets in the file are ints anyway
+        RandomAccessFile raf = new RandomAccessFile(ld2File, "r");
+        FileChannel fChannel = raf.getChannel();
         System.out.println(""+fChannel.size());
-        fChannel.read(dataRawBytes);
+        if (fChannel.size() > Integer.MAX_VALUE) {
+            System.err.println("文件过大：" + fChannel.size() + " B");
+            raf.close();
+            return;
+        }
+        ByteBuffer dataRawBytes = fChannel.map(FileChannel.MapMode.READ_ONLY, 0, fChannel.size());
         fChannel.close();
+        raf.close();
         dataRawBytes.order(ByteOrder.LITTLE_ENDIAN);
-        dataRawBytes.rewind();
 
-        System.out.println("ļ" + ld2File);
-        System.out.println("ͣ" + new String(dataRawBytes.array(), 0, 4, "ASCII"));
-        System.out.println("汾" + dataRawBytes.getShort(0x18) + "." + dataRawBytes.getShort(0x1A));
+        byte[] magic = new byte[4];
+        for (int i = 0; i < magic.length; i++) {
+            magic[i] = dataRawBytes.get(i);
+        }
+        System.out.println("文件：" + ld2File);
+        System.out.println("类型：" + new String(magic, "ASCII"));
+        System.out.println("版本：" + dataRawBytes.getShort(0x18) + "." + dataRawBytes.getShort(0x1A));
         System.out.println("ID: 0x" + Long.toHexString(dataRawBytes.getLong(0x1C)));
 
         int offsetData = dataRawBytes.getInt(0x5C) + 0x60;
         if (dataRawBytes.limit() > offsetData) {
-            System.out.println("ַ0x" + Integer.toHexString(offsetData));
+            System.out.println("简介地址：0x" + Integer.toHexString(offsetData));
             int type = dataRawBytes.getInt(offsetData);
-            System.out.println("ͣ0x" + Integer.toHexString(type));
+            System.out.println("简介类型：0x" + Integer.toHexString(type));
             int offsetWithInfo = dataRawBytes.getInt(offsetData + 4) + offsetData + 12;
             if (type == 3) {
                 // without additional information
@@ -120,165 +154,305 @@ public class LingoesLd2Reader {
             } else if (dataRawBytes.limit() > offsetWithInfo - 0x1C) {
                 readDictionary(ld2File, dataRawBytes, offsetWithInfo);
             } else {
-                System.err.println("ļֵݡֵ䣿");
+                System.err.println("文件不包含字典数据。网上字典？");
             }
         } else {
-            System.err.println("ļֵݡֵ䣿");
+            System.err.println("文件不包含字典数据。网上字典？");
         }
     }
 
-    private static final long decompress(final String inflatedFile, final ByteBuffer data, final int offset,
-            final int length, final boolean append) throws IOException {
-        Inflater inflator = new Inflater();
-        InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data.array(), offset, length),
-                inflator, 1024 * 8);
-        FileOutputStream out = new FileOutputStream(inflatedFile, append);
+    private static final byte[] decompress(final Inflater inflator, final ByteBuffer data, final int offset,
+            final int length) throws IOException {
+        inflator.reset();
+        ByteBuffer slice = data.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        InflaterInputStream in = new InflaterInputStream(new ByteBufferInputStream(slice), inflator, 1024 * 8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
         writeInputStream(in, out);
-        long bytesRead = inflator.getBytesRead();
         in.close();
-        out.close();
-        inflator.end();
-        return bytesRead;
+        return out.toByteArray();
     }
 
-    private static final SensitiveStringDecoder[] detectEncodings(final ByteBuffer inflatedBytes,
-            final int offsetWords, final int offsetXml, final int defTotal, final int dataLen, final int[] idxData,
-            final String[] defData) throws UnsupportedEncodingException {
+    private static final SensitiveStringDecoder[] detectEncodings(final InflatedData inflated, final int defTotal,
+            final int dataLen, final int[] idxData, final String[] defData) throws UnsupportedEncodingException {
         final int test = Math.min(defTotal, 10);
         Pattern p = Pattern.compile("^.*[\\x00-\\x1f].*$");
         for (int j = 0; j < AVAIL_ENCODINGS.length; j++) {
             for (int k = 0; k < AVAIL_ENCODINGS.length; k++) {
                 try {
-                    readDefinitionData(inflatedBytes, offsetWords, offsetXml, dataLen, AVAIL_ENCODINGS[j],
-                            AVAIL_ENCODINGS[k], idxData, defData, test);
-                    System.out.println("룺" + AVAIL_ENCODINGS[j].name);
-                    System.out.println("XML룺" + AVAIL_ENCODINGS[k].name);
+                    readDefinitionData(inflated, dataLen, AVAIL_ENCODINGS[j], AVAIL_ENCODINGS[k], idxData, defData,
+                            test);
+                    System.out.println("词组编码：" + AVAIL_ENCODINGS[j].name);
+                    System.out.println("XML编码：" + AVAIL_ENCODINGS[k].name);
                     return new SensitiveStringDecoder[] { AVAIL_ENCODINGS[j], AVAIL_ENCODINGS[k] };
                 } catch (Throwable e) {
                     // ignore
                 }
             }
         }
-        System.err.println("ԶʶʧܣѡUTF-16LE");
+        System.err.println("自动识别编码失败！选择UTF-16LE继续。");
         return new SensitiveStringDecoder[] { AVAIL_ENCODINGS[1], AVAIL_ENCODINGS[1] };
     }
 
-    private static final void extract(final String inflatedFile, final String indexFile,
+    private static final void extract(final InflatedData inflated, final String indexFile,
             final String extractedWordsFile, final String extractedXmlFile, final String extractedOutputFile,
-            final int[] idxArray, final int offsetDefs, final int offsetXml) throws IOException, FileNotFoundException,
-            UnsupportedEncodingException {
-        System.out.println("д'" + extractedOutputFile + "'");
-        FileChannel fChannel = new RandomAccessFile(inflatedFile, "r").getChannel();
-        ByteBuffer dataRawBytes = ByteBuffer.allocate((int) fChannel.size());
-        fChannel.read(dataRawBytes);
-        fChannel.close();
-        dataRawBytes.order(ByteOrder.LITTLE_ENDIAN);
-        dataRawBytes.rewind();
+            final int[] idxArray) throws IOException, FileNotFoundException, UnsupportedEncodingException {
+        System.out.println("写入'" + extractedOutputFile + "'。。。");
         final int dataLen = 10;
-        final int defTotal = offsetDefs / dataLen - 1;
-        String[] words = new String[defTotal];
+        final int defTotal = inflated.index.capacity() / dataLen - 1;
         int[] idxData = new int[6];
         String[] defData = new String[2];
-        final SensitiveStringDecoder[] encodings = detectEncodings(dataRawBytes, offsetDefs, offsetXml, defTotal,
-                dataLen, idxData, defData);
-        DataOutputStream out=null;
-        Deflater deflater=new Deflater();
-        int[] defLen=new int[defTotal];
-        byte[] tmp=null;
-        byte[] output=new byte[100000];
-        dataRawBytes.position(8);
+        final SensitiveStringDecoder[] encodings = detectEncodings(inflated, defTotal, dataLen, idxData, defData);
         int counter = 0;
         String dicName=null;
-        System.out.print("ʵƣ");
+        System.out.print("输入词典名称：");
         InputStreamReader isr = new InputStreamReader(System.in);
         BufferedReader br= new BufferedReader(isr);
         dicName = br.readLine();
         isr.close();
         isr=null;
-        out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream("C:\\dict\\out\\1.dd0")));
-        DataOutputStream out1=new DataOutputStream(new BufferedOutputStream(new FileOutputStream("C:\\dict\\out\\1.ddf")));
-        DataOutputStream out2=new DataOutputStream(new BufferedOutputStream(new FileOutputStream("C:\\dict\\out\\1.ddp")));
-        out.write("DDIC".getBytes(),0,4);
-        out.writeInt(defTotal);
-        out.writeUTF(dicName);
-        Words[] w=new Words[defTotal];
-        int fn=1,pn=0;
-        for (int i = 0; i < defTotal; i++) {
-            readDefinitionData(dataRawBytes, offsetDefs, offsetXml, dataLen, encodings[0], encodings[1], idxData,
-                    defData, i);
-            words[i] = defData[0];
-            w[i]=new Words();
-            w[i].s1=defData[0];
-            w[i].s2=defData[1];
-            if(!w[i].s2.startsWith("<html>"))w[i].s2="<html><body>"+w[i].s2+"</body></html>";
-        }
-        Arrays.sort(w, 0, defTotal-1);
-        for (int i = 0; i < defTotal; i++) {
-            readDefinitionData(dataRawBytes, offsetDefs, offsetXml, dataLen, encodings[0], encodings[1], idxData,
-                    defData, i);
-            //deflater.reset();
-            //deflater.setInput(w[i].s2.getBytes("UTF-8"));
-            //deflater.finish();
-            //defLen[i]=deflater.deflate(output);
-            defLen[i]=w[i].s2.getBytes("UTF-8").length;
-            if(out1.size()+defLen[i]>=32768){
-                fn++;
-                out1.close();
-                out1=new DataOutputStream(new BufferedOutputStream(new FileOutputStream("C:\\dict\\out\\"+fn+".ddf")));
-            }
-            out1.write(w[i].s2.getBytes("UTF-8"),0,defLen[i]);
-            if(out.size()>=32000){
-                pn++;
-                out.close();
-                out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream("C:\\dict\\out\\1.dd"+pn)));
-            }
-            out.writeShort(fn);
-            out.writeShort(out1.size()-defLen[i]);
-            out.writeShort(defLen[i]);
-            out.writeUTF(w[i].s1);
-            counter++;
-        }
-        out2.writeInt(pn);
-        out2.close();
-        out1.close();
-        out.close();
-        System.out.println("ɹ" + counter + "ݡ");
+        byte[] presetDictionary = trainDictionary(inflated, defTotal, dataLen, encodings);
+        final int runSize = Integer.getInteger("dd.runSize", 0).intValue();
+        final boolean bounded = runSize > 0 && runSize < defTotal;
+        DDWriter writer = new DDWriter(defTotal, dicName, presetDictionary, bounded);
+        if (bounded) {
+            counter = externalSort(inflated, defTotal, dataLen, encodings, runSize, writer);
+        } else {
+            Words[] w=decode(inflated, defTotal, dataLen, encodings);
+            Arrays.parallelSort(w);
+            for (int i = 0; i < defTotal; i++) {
+                writer.write(w[i]);
+                counter++;
+            }
+        }
+        writer.close();
+        System.out.println("成功读出" + counter + "组数据。");
+    }
+
+    /**
+     * Sorts runs of <code>runSize</code> headwords with their entry numbers, spills them to temporary files and
+     * merges the runs into <code>writer</code>. Definitions are only decoded while merging, one batch at a time, so
+     * the memory used does not grow with the dictionary, as long as the writer leaves out the indexes it builds in
+     * memory, which it does unless they are asked for.
+     */
+    private static final int externalSort(final InflatedData inflated, final int defTotal, final int dataLen,
+            final SensitiveStringDecoder[] encodings, final int runSize, final DDWriter writer) throws IOException {
+        List<File> runs = new ArrayList<File>();
+        int[] idxData = new int[6];
+        for (int from = 0; from < defTotal; from += runSize) {
+            int to = Math.min(from + runSize, defTotal);
+            Words[] w = new Words[to - from];
+            for (int i = from; i < to; i++) {
+                w[i - from] = new Words();
+                w[i - from].key = sortKey(readWordData(inflated, dataLen, encodings[0], idxData, i));
+                w[i - from].entry = i;
+            }
+            Arrays.parallelSort(w);
+            File run = File.createTempFile("dict", ".run");
+            run.deleteOnExit();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+            for (int i = 0; i < w.length; i++) {
+                out.writeShort(w[i].key.length);
+                out.write(w[i].key);
+                out.writeInt(w[i].entry);
+            }
+            out.close();
+            runs.add(run);
+        }
+        System.out.println("合并" + runs.size() + "个临时文件。。。");
+
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size());
+        for (File run : runs) {
+            RunReader reader = new RunReader(run);
+            if (reader.next()) {
+                queue.add(reader);
+            }
+        }
+        int counter = 0;
+        int[] batch = new int[runSize];
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            while (!queue.isEmpty()) {
+                int n = 0;
+                while (n < batch.length && !queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    batch[n++] = reader.current.entry;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                Words[] w = new Words[n];
+                pool.invoke(new DecodeTask(inflated, dataLen, encodings, w, batch, 0, n));
+                for (int i = 0; i < n; i++) {
+                    writer.write(w[i]);
+                    counter++;
+                }
+            }
+        } finally {
+            pool.shutdown();
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Builds the preset dictionary for the definition blocks from a sample of the definitions. Tags and words, and
+     * runs of two or three of them, are counted and the fragments that save the most bytes are kept, the most
+     * valuable last since deflate codes near distances in fewer bits. <code>-Ddd.dictSize</code> sets the size, 16 KB
+     * by default so that the dictionary and an 8 KB block still fit in the 32 KB window; 0 turns it off.
+     */
+    private static final byte[] trainDictionary(final InflatedData inflated, final int defTotal, final int dataLen,
+            final SensitiveStringDecoder[] encodings) {
+        final int dictSize = Integer.getInteger("dd.dictSize", 16 * 1024).intValue();
+        if (dictSize <= 0 || defTotal == 0) {
+            return new byte[0];
+        }
+        final int sampleSize = Math.min(defTotal, 10000);
+        int[] sample = new int[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            sample[i] = (int) ((long) i * defTotal / sampleSize);
+        }
+        Words[] w = new Words[sampleSize];
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new DecodeTask(inflated, dataLen, encodings, w, sample, 0, sampleSize));
+        } finally {
+            pool.shutdown();
+        }
+
+        // ISO-8859-1 maps every byte to one char, so fragments can be counted as Strings
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < sampleSize; i++) {
+            String def = new String(w[i].s2, ISO_8859_1);
+            tokens.clear();
+            int start = 0;
+            for (int j = 0; j < def.length(); j++) {
+                char c = def.charAt(j);
+                if (c == '<' && j > start) {
+                    tokens.add(def.substring(start, j));
+                    start = j;
+                } else if (c == '>' || c == ' ') {
+                    tokens.add(def.substring(start, j + 1));
+                    start = j + 1;
+                }
+            }
+            for (int j = 0; j < tokens.size(); j++) {
+                String fragment = "";
+                for (int k = j; k < j + 3 && k < tokens.size(); k++) {
+                    fragment += tokens.get(k);
+                    if (fragment.length() >= 3 && fragment.length() <= 256) {
+                        Integer count = counts.get(fragment);
+                        counts.put(fragment, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+                    }
+                }
+            }
+        }
+        List<Map.Entry<String, Integer>> fragments = new ArrayList<Map.Entry<String, Integer>>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (e.getValue().intValue() > 1) {
+                fragments.add(e);
+            }
+        }
+        Collections.sort(fragments, new Comparator<Map.Entry<String, Integer>>() {
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                long sa = (long) (a.getValue().intValue() - 1) * a.getKey().length();
+                long sb = (long) (b.getValue().intValue() - 1) * b.getKey().length();
+                return sa < sb ? 1 : sa > sb ? -1 : a.getKey().compareTo(b.getKey());
+            }
+        });
+        StringBuilder dict = new StringBuilder();
+        for (Map.Entry<String, Integer> e : fragments) {
+            String fragment = e.getKey();
+            if (dict.length() + fragment.length() > dictSize) {
+                continue;
+            }
+            if (dict.indexOf(fragment) == -1) {
+                dict.insert(0, fragment);
+            }
+        }
+        System.out.println("预设字典：" + dict.length() + " B");
+        return dict.toString().getBytes(ISO_8859_1);
+    }
+
+    private static final Words[] decode(final InflatedData inflated, final int defTotal, final int dataLen,
+            final SensitiveStringDecoder[] encodings) {
+        Words[] w = new Words[defTotal];
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new DecodeTask(inflated, dataLen, encodings, w, null, 0, defTotal));
+        } finally {
+            pool.shutdown();
+        }
+        return w;
     }
 
     private static final void getIdxData(final ByteBuffer dataRawBytes, final int position, final int[] wordIdxData) {
-        dataRawBytes.position(position);
-        wordIdxData[0] = dataRawBytes.getInt();
-        wordIdxData[1] = dataRawBytes.getInt();
-        wordIdxData[2] = dataRawBytes.get() & 0xff;
-        wordIdxData[3] = dataRawBytes.get() & 0xff;
-        wordIdxData[4] = dataRawBytes.getInt();
-        wordIdxData[5] = dataRawBytes.getInt();
-    }
-
-    private static final void inflate(final ByteBuffer dataRawBytes, final List<Integer> deflateStreams,
-            final String inflatedFile) {
-        System.out.println("ѹ'" + deflateStreams.size() + "''" + inflatedFile + "'");
-        int startOffset = dataRawBytes.position();
-        int offset = -1;
-        int lastOffset = startOffset;
-        boolean append = false;
+        wordIdxData[0] = dataRawBytes.getInt(position);
+        wordIdxData[1] = dataRawBytes.getInt(position + 4);
+        wordIdxData[2] = dataRawBytes.get(position + 8) & 0xff;
+        wordIdxData[3] = dataRawBytes.get(position + 9) & 0xff;
+        wordIdxData[4] = dataRawBytes.getInt(position + 10);
+        wordIdxData[5] = dataRawBytes.getInt(position + 14);
+    }
+
+    private static final InflatedData inflate(final String ld2File, final ByteBuffer dataRawBytes,
+            final int offsetCompressedData, final List<Integer> deflateStreams, final int indexLength,
+            final int wordsLength, final int xmlLength) {
+        final boolean mapped = Boolean.getBoolean("dd.mapInflated");
+        final String inflatedFile = ld2File + ".inflated";
+        System.out.println("解压缩'" + deflateStreams.size() + "'个数据流至"
+                + (mapped ? "'" + inflatedFile + "'" : "内存") + "。。。");
+        final int streams = deflateStreams.size();
+        final int[] offsets = new int[streams + 1];
+        offsets[0] = offsetCompressedData;
+        for (int i = 0; i < streams; i++) {
+            offsets[i + 1] = offsets[0] + deflateStreams.get(i).intValue();
+        }
+        ForkJoinPool pool = new ForkJoinPool();
         try {
-            for (Integer offsetRelative : deflateStreams) {
-                offset = startOffset + offsetRelative.intValue();
-                decompress(inflatedFile, dataRawBytes, lastOffset, offset - lastOffset, append);
-                append = true;
-                lastOffset = offset;
+            InflatedData inflated = mapped ? InflatedData.map(inflatedFile, indexLength, wordsLength, xmlLength)
+                    : InflatedData.allocate(indexLength, wordsLength, xmlLength);
+            // streams only know their size once inflated, so copy them into place in order, with only as many tasks
+            // ahead of the one copied as there are workers, so the inflated streams do not pile up on the heap
+            ArrayDeque<InflateTask> tasks = new ArrayDeque<InflateTask>();
+            int next = 0;
+            long slot = 0;
+            while (next < streams || !tasks.isEmpty()) {
+                while (next < streams && tasks.size() < pool.getParallelism()) {
+                    InflateTask task = new InflateTask(dataRawBytes, offsets, next,
+                            Math.min(next + InflateTask.STREAMS_PER_TASK, streams));
+                    pool.execute(task);
+                    tasks.add(task);
+                    next += InflateTask.STREAMS_PER_TASK;
+                }
+                for (byte[] chunk : tasks.poll().join()) {
+                    inflated.put(slot, chunk);
+                    slot += chunk.length;
+                }
             }
+            if (slot != inflated.length()) {
+                System.err.println("解压缩大小不符: " + slot + " / " + inflated.length() + " B");
+            }
+            return inflated;
         } catch (Throwable e) {
-            System.err.println("ѹʧ: 0x" + Integer.toHexString(offset) + ": " + e.toString());
+            while (e.getCause() != null) {
+                e = e.getCause();
+            }
+            System.err.println("解压缩失败: " + e.getMessage());
+            return null;
+        } finally {
+            pool.shutdown();
         }
     }
 
-    private static final void readDefinitionData(final ByteBuffer inflatedBytes, final int offsetWords,
-            final int offsetXml, final int dataLen, final SensitiveStringDecoder wordStringDecoder,
-            final SensitiveStringDecoder xmlStringDecoder, final int[] idxData, final String[] defData, final int i)
-            throws UnsupportedEncodingException {
-        getIdxData(inflatedBytes, dataLen * i, idxData);
+    private static final void readDefinitionData(final InflatedData inflated, final int dataLen,
+            final SensitiveStringDecoder wordStringDecoder, final SensitiveStringDecoder xmlStringDecoder,
+            final int[] idxData, final String[] defData, final int i) {
+        getIdxData(inflated.index, dataLen * i, idxData);
         int lastWordPos = idxData[0];
         int lastXmlPos = idxData[1];
         final int flags = idxData[2];
@@ -286,32 +460,40 @@ public class LingoesLd2Reader {
         int currentWordOffset = idxData[4];
         int currenXmlOffset = idxData[5];
 
-        String xml = strip(new String(xmlStringDecoder.decode(inflatedBytes.array(), offsetXml + lastXmlPos,
-                currenXmlOffset - lastXmlPos)));
+        String xml = strip(new String(xmlStringDecoder.decode(inflated.xml, lastXmlPos, currenXmlOffset
+                - lastXmlPos)));
         while (refs-- > 0) {
-            int ref = inflatedBytes.getInt(offsetWords + lastWordPos);
-            getIdxData(inflatedBytes, dataLen * ref, idxData);
+            int ref = inflated.words.getInt(lastWordPos);
+            getIdxData(inflated.index, dataLen * ref, idxData);
             lastXmlPos = idxData[1];
             currenXmlOffset = idxData[5];
             if (xml.isEmpty()) {
-                xml = strip(new String(xmlStringDecoder.decode(inflatedBytes.array(), offsetXml + lastXmlPos,
-                        currenXmlOffset - lastXmlPos)));
+                xml = strip(new String(xmlStringDecoder.decode(inflated.xml, lastXmlPos, currenXmlOffset
+                        - lastXmlPos)));
             } else {
-                xml = strip(new String(xmlStringDecoder.decode(inflatedBytes.array(), offsetXml + lastXmlPos,
-                        currenXmlOffset - lastXmlPos))) + ", " + xml;
+                xml = strip(new String(xmlStringDecoder.decode(inflated.xml, lastXmlPos, currenXmlOffset
+                        - lastXmlPos))) + ", " + xml;
             }
             lastWordPos += 4;
         }
         defData[1] = xml;
 
-        String word = new String(wordStringDecoder.decode(inflatedBytes.array(), offsetWords + lastWordPos,
-                currentWordOffset - lastWordPos));
+        String word = new String(wordStringDecoder.decode(inflated.words, lastWordPos, currentWordOffset
+                - lastWordPos));
         defData[0] = word;
     }
 
+    private static final String readWordData(final InflatedData inflated, final int dataLen,
+            final SensitiveStringDecoder wordStringDecoder, final int[] idxData, final int i) {
+        getIdxData(inflated.index, dataLen * i, idxData);
+        // the word follows the references to other entries
+        int lastWordPos = idxData[0] + 4 * idxData[3];
+        return new String(wordStringDecoder.decode(inflated.words, lastWordPos, idxData[4] - lastWordPos));
+    }
+
     private static final void readDictionary(final String ld2File, final ByteBuffer dataRawBytes,
             final int offsetWithIndex) throws IOException, FileNotFoundException, UnsupportedEncodingException {
-        System.out.println("ʵͣ0x" + Integer.toHexString(dataRawBytes.getInt(offsetWithIndex)));
+        System.out.println("词典类型：0x" + Integer.toHexString(dataRawBytes.getInt(offsetWithIndex)));
         int limit = dataRawBytes.getInt(offsetWithIndex + 4) + offsetWithIndex + 8;
         int offsetIndex = offsetWithIndex + 0x1C;
         int offsetCompressedDataHeader = dataRawBytes.getInt(offsetWithIndex + 8) + offsetIndex;
@@ -320,44 +502,137 @@ public class LingoesLd2Reader {
         int inflatedXmlLength = dataRawBytes.getInt(offsetWithIndex + 20);
         int definitions = (offsetCompressedDataHeader - offsetIndex) / 4;
         List<Integer> deflateStreams = new ArrayList<Integer>();
-        dataRawBytes.position(offsetCompressedDataHeader + 8);
+        int position = offsetCompressedDataHeader + 8;
         System.out.println(offsetCompressedDataHeader);
-        int offset = dataRawBytes.getInt();
-        while (offset + dataRawBytes.position() < limit) {
-            offset = dataRawBytes.getInt();
+        int offset = dataRawBytes.getInt(position);
+        position += 4;
+        while (offset + position < limit) {
+            offset = dataRawBytes.getInt(position);
+            position += 4;
             //System.out.println(offset);
             deflateStreams.add(Integer.valueOf(offset));
         }
-        int offsetCompressedData = dataRawBytes.position();
-        System.out.println("Ŀ" + definitions);
-        System.out.println("ַ/С0x" + Integer.toHexString(offsetIndex) + " / "
+        int offsetCompressedData = position;
+        System.out.println("索引词组数目：" + definitions);
+        System.out.println("索引地址/大小：0x" + Integer.toHexString(offsetIndex) + " / "
                 + (offsetCompressedDataHeader - offsetIndex) + " B");
-        System.out.println("ѹݵַ/С0x" + Integer.toHexString(offsetCompressedData) + " / "
+        System.out.println("压缩数据地址/大小：0x" + Integer.toHexString(offsetCompressedData) + " / "
                 + (limit - offsetCompressedData) + " B");
-        System.out.println("ַ/Сѹ󣩣0x0 / " + inflatedWordsIndexLength + " B");
-        System.out.println("ַ/Сѹ󣩣0x" + Integer.toHexString(inflatedWordsIndexLength) + " / "
+        System.out.println("词组索引地址/大小（解压缩后）：0x0 / " + inflatedWordsIndexLength + " B");
+        System.out.println("词组地址/大小（解压缩后）：0x" + Integer.toHexString(inflatedWordsIndexLength) + " / "
                 + inflatedWordsLength + " B");
-        System.out.println("XMLַ/Сѹ󣩣0x" + Integer.toHexString(inflatedWordsIndexLength + inflatedWordsLength)
+        System.out.println("XML地址/大小（解压缩后）：0x" + Integer.toHexString(inflatedWordsIndexLength + inflatedWordsLength)
                 + " / " + inflatedXmlLength + " B");
-        System.out.println("ļСѹ󣩣" + (inflatedWordsIndexLength + inflatedWordsLength + inflatedXmlLength) / 1024
+        System.out.println("文件大小（解压缩后）：" + (inflatedWordsIndexLength + inflatedWordsLength + inflatedXmlLength) / 1024
                 + " KB");
-        String inflatedFile = ld2File + ".inflated";
-        inflate(dataRawBytes, deflateStreams, inflatedFile);
+        InflatedData inflated = inflate(ld2File, dataRawBytes, offsetCompressedData, deflateStreams,
+                inflatedWordsIndexLength, inflatedWordsLength, inflatedXmlLength);
 
-        if (new File(inflatedFile).isFile()) {
+        if (inflated != null) {
             String indexFile = ld2File + ".idx";
             String extractedFile = ld2File + ".words";
             String extractedXmlFile = ld2File + ".xml";
             String extractedOutputFile = ld2File + ".dd";
 
-            dataRawBytes.position(offsetIndex);
             int[] idxArray = new int[definitions];
             for (int i = 0; i < definitions; i++) {
-                idxArray[i] = dataRawBytes.getInt();
+                idxArray[i] = dataRawBytes.getInt(offsetIndex + 4 * i);
+            }
+            extract(inflated, indexFile, extractedFile, extractedXmlFile, extractedOutputFile, idxArray);
+        }
+    }
+
+    /**
+     * The headword folded to lower case with fold() and encoded as UTF-8. Keys sort by their unsigned bytes, which is
+     * also code point order, so the device only has to fold and encode the query once and can then compare bytes.
+     */
+    private static final byte[] sortKey(final String word) {
+        return fold(word).getBytes(UTF_8);
+    }
+
+    /**
+     * Folds word to lower case for its key. The rule is spelled out instead of left to toLowerCase(), which here
+     * depends on the locale and on most phones only folds Latin-1, so that the device builds the same keys: the
+     * capitals of ASCII, Latin-1, Latin Extended-A, Greek and Cyrillic become small letters, everything else stays.
+     * Dictionary.fold() on the device and in dangodict must stay the same.
+     */
+    private static final String fold(final String word) {
+        char[] chars = null;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i), lower = fold(c);
+            if (lower != c) {
+                if (chars == null) {
+                    chars = word.toCharArray();
+                }
+                chars[i] = lower;
+            }
+        }
+        return chars == null ? word : new String(chars);
+    }
+
+    private static final char fold(final char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + 0x20) : c;
+        }
+        if (c < 0x100) {
+            return c >= 0xc0 && c <= 0xde && c != 0xd7 ? (char) (c + 0x20) : c;
+        }
+        if (c < 0x180) {
+            // capitals come before their small letters, on even code points but in two runs; dotted I, dotless i,
+            // kra, n with apostrophe and long s have no pair
+            if (c == 0x130 || c == 0x131 || c == 0x138 || c == 0x149 || c == 0x17f) {
+                return c;
+            }
+            if (c == 0x178) {
+                return 0xff;
+            }
+            boolean odd = c >= 0x139 && c <= 0x148 || c >= 0x179;
+            return (c & 1) == (odd ? 1 : 0) ? (char) (c + 1) : c;
+        }
+        if (c >= 0x386 && c <= 0x3ab) {
+            if (c == 0x386) {
+                return 0x3ac;
+            }
+            if (c >= 0x388 && c <= 0x38a) {
+                return (char) (c + 0x25);
+            }
+            if (c == 0x38c) {
+                return 0x3cc;
+            }
+            if (c == 0x38e || c == 0x38f) {
+                return (char) (c + 0x3f);
+            }
+            return c >= 0x391 && c != 0x3a2 ? (char) (c + 0x20) : c;
+        }
+        if (c >= 0x400 && c <= 0x52f) {
+            if (c < 0x410) {
+                return (char) (c + 0x50);
+            }
+            if (c < 0x430) {
+                return (char) (c + 0x20);
+            }
+            if (c == 0x4c0) {
+                return 0x4cf;
+            }
+            if (c >= 0x4c1 && c <= 0x4ce) {
+                return (c & 1) == 1 ? (char) (c + 1) : c;
+            }
+            if (c >= 0x460 && c <= 0x481 || c >= 0x48a && c <= 0x4bf || c >= 0x4d0) {
+                return (c & 1) == 0 ? (char) (c + 1) : c;
+            }
+        }
+        return c;
+    }
+
+    private static final int compareKeys(final byte[] a, final byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
             }
-            extract(inflatedFile, indexFile, extractedFile, extractedXmlFile, extractedOutputFile, idxArray,
-                    inflatedWordsIndexLength, inflatedWordsIndexLength + inflatedWordsLength);
         }
+        return a.length - b.length;
     }
 
     private static final String strip(final String xml) {
@@ -397,29 +672,897 @@ public class LingoesLd2Reader {
             out.write(buffer, 0, len);
         }
     }
+
+    /**
+     * First Bloom filter hash of a key, 32 bit FNV-1a. The device computes the same in Dictionary.
+     */
+    private static int bloomHash1(byte[] key) {
+        int h = 0x811c9dc5;
+        for (byte b : key) {
+            h = (h ^ (b & 0xff)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Second Bloom filter hash of a key, the polynomial String.hashCode() uses, mixed with the murmur3 finalizer.
+     */
+    private static int bloomHash2(byte[] key) {
+        int h = 0;
+        for (byte b : key) {
+            h = 31 * h + (b & 0xff);
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final void writeVarInt(final DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    private static class InflateTask extends RecursiveTask<byte[][]> {
+        private static final long serialVersionUID = 1L;
+        private static final int STREAMS_PER_TASK = 16;
+        private final ByteBuffer data;
+        private final int[] offsets;
+        private final int from, to;
+
+        private InflateTask(ByteBuffer data, int[] offsets, int from, int to) {
+            this.data = data;
+            this.offsets = offsets;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected byte[][] compute() {
+            byte[][] inflated = new byte[to - from][];
+            Inflater inflator = new Inflater();
+            int i = from;
+            try {
+                for (; i < to; i++) {
+                    inflated[i - from] = decompress(inflator, data, offsets[i], offsets[i + 1] - offsets[i]);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("0x" + Integer.toHexString(offsets[i]) + ": " + e.toString());
+            } finally {
+                inflator.end();
+            }
+            return inflated;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int ENTRIES_PER_TASK = 2048;
+        private final InflatedData inflated;
+        private final int dataLen;
+        private final SensitiveStringDecoder[] encodings;
+        private final Words[] w;
+        // entry numbers to decode into w, or null to decode entry i into w[i]
+        private final int[] entries;
+        private final int from, to;
+
+        private DecodeTask(InflatedData inflated, int dataLen, SensitiveStringDecoder[] encodings, Words[] w,
+                int[] entries, int from, int to) {
+            this.inflated = inflated;
+            this.dataLen = dataLen;
+            this.encodings = encodings;
+            this.w = w;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > ENTRIES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeTask(inflated, dataLen, encodings, w, entries, from, mid), new DecodeTask(
+                        inflated, dataLen, encodings, w, entries, mid, to));
+                return;
+            }
+            // decoders are stateful, every worker gets its own
+            SensitiveStringDecoder wordStringDecoder = encodings[0].copy();
+            SensitiveStringDecoder xmlStringDecoder = encodings[1].copy();
+            int[] idxData = new int[6];
+            String[] defData = new String[2];
+            for (int i = from; i < to; i++) {
+                int entry = entries == null ? i : entries[i];
+                readDefinitionData(inflated, dataLen, wordStringDecoder, xmlStringDecoder, idxData, defData, entry);
+                if (!defData[1].startsWith("<html>")) defData[1] = "<html><body>" + defData[1] + "</body></html>";
+                w[i] = new Words();
+                w[i].s1 = defData[0];
+                w[i].s2 = defData[1].getBytes(UTF_8);
+                w[i].key = sortKey(defData[0]);
+                w[i].entry = entry;
+            }
+        }
+    }
+
+    /**
+     * Inflated dictionary data, split into the words index, words and xml regions so that each one can be addressed
+     * with an int offset. The regions are direct buffers, or views of a mapped scratch file with
+     * <code>-Ddd.mapInflated=true</code>, so the data is never copied through the heap.
+     */
+    private static class InflatedData {
+        private final ByteBuffer index, words, xml;
+
+        private InflatedData(ByteBuffer index, ByteBuffer words, ByteBuffer xml) {
+            this.index = index.order(ByteOrder.LITTLE_ENDIAN);
+            this.words = words.order(ByteOrder.LITTLE_ENDIAN);
+            this.xml = xml.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static InflatedData allocate(int indexLength, int wordsLength, int xmlLength) {
+            return new InflatedData(ByteBuffer.allocateDirect(indexLength), ByteBuffer.allocateDirect(wordsLength),
+                    ByteBuffer.allocateDirect(xmlLength));
+        }
+
+        private static InflatedData map(String file, int indexLength, int wordsLength, int xmlLength)
+                throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel fChannel = raf.getChannel();
+            long wordsOffset = indexLength;
+            long xmlOffset = wordsOffset + wordsLength;
+            InflatedData inflated = new InflatedData(fChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexLength),
+                    fChannel.map(FileChannel.MapMode.READ_WRITE, wordsOffset, wordsLength), fChannel.map(
+                            FileChannel.MapMode.READ_WRITE, xmlOffset, xmlLength));
+            // the mappings stay valid after the channel is closed
+            fChannel.close();
+            raf.close();
+            new File(file).deleteOnExit();
+            return inflated;
+        }
+
+        private long length() {
+            return (long) index.capacity() + words.capacity() + xml.capacity();
+        }
+
+        private void put(long position, byte[] chunk) {
+            int done = 0;
+            ByteBuffer[] regions = { index, words, xml };
+            for (int r = 0; r < regions.length && done < chunk.length; r++) {
+                int capacity = regions[r].capacity();
+                if (position >= capacity) {
+                    position -= capacity;
+                    continue;
+                }
+                int len = (int) Math.min(capacity - position, chunk.length - done);
+                ByteBuffer target = regions[r].duplicate();
+                target.position((int) position);
+                target.put(chunk, done, len);
+                done += len;
+                position = 0;
+            }
+            if (done < chunk.length) {
+                throw new IllegalStateException("0x" + Long.toHexString(length()) + ": inflated data overflow");
+            }
+        }
+    }
+
     private static class Words implements Comparable<Words>{
-        public String s1,s2;
+        public String s1;
+        // the definition, already encoded as UTF-8
+        public byte[] s2;
+        // see sortKey()
+        public byte[] key;
+        public int entry;
         public int compareTo(Words o) {
-            return s2.compareToIgnoreCase(o.s1);
+            return compareKeys(key, o.key);
+        }
+    }
+
+    /**
+     * Writes sorted entries into the single archive 1.dda, or 2.dda etc. with <code>-Ddd.archive=2</code>, meant to be
+     * stored uncompressed in the jar so the device can skip to any offset without inflating what comes before it.
+     *
+     * The archive starts with "DDIC", the format version and the int offset and length of the directory at its end.
+     * Then follow the preset dictionary, the definition blocks and the index pages. Definitions are grouped into blocks
+     * of about <code>-Ddd.blockSize</code> bytes (8 KB by default), each block is deflated on its own (raw deflate, no
+     * zlib header) with the preset dictionary and followed by its CRC32. A definition identical to one written before
+     * points at that copy instead, as long as its hash is among the <code>-Ddd.dedupEntries</code> (65536 by default)
+     * most recently used ones; older copies are forgotten so the memory used does not grow with the dictionary, and a
+     * duplicate of one of them is written again.
+     *
+     * Keys are the headwords folded to lower case by fold(), version 5 on, and encoded as UTF-8. Keys in a page are
+     * front coded: every record starts with the varint length of the prefix it shares with the
+     * previous key and the varint length of the rest, then the rest of the key, followed by varints for the offset of
+     * the compressed block from the first block, its length, and the offset and length of the definition in the
+     * inflated block. Every <code>-Ddd.restartInterval</code> records (16 by default) a key is stored in full; a page
+     * ends with the int offsets of these restart records and their count. dangodict reads pages in place, so it
+     * binary searches the restarts and decodes at most one interval of records; the device skips the table, decodes
+     * a whole page into an IndexPage once and keeps the recent ones cached. Pages roll over at
+     * <code>-Ddd.pageSize</code> bytes.
+     *
+     * Optional parts follow the pages as sections, each named by a four letter tag:
+     * <ul>
+     * <li>"BLOM": a Bloom filter over the keys, the int number of hashes and then the bits, for a false positive rate of
+     * <code>-Ddd.bloomRate</code> (0.01 by default, 0 leaves it out). See bloomHash1() and bloomHash2().</li>
+     * <li>"RECN": the int number of the first record of every page, counting records from the start of the first
+     * page, for the indexes below that point at records by number.</li>
+     * <li>"FUZZ": a symmetric delete index for lookups with typos, see DeleteIndex. <code>-Ddd.fuzzyDistance</code>
+     * (1 by default, 0 leaves it out) is how many letters are deleted from the headwords and
+     * <code>-Ddd.fuzzyPrefix</code> (6 by default) from how many of their first letters. The index is kept in memory
+     * until the end, so with <code>-Ddd.runSize</code> it is left out unless the distance is given.</li>
+     * <li>"TEXT": an inverted index over the words of the definitions, see TextIndex. <code>-Ddd.textIndex=false</code>
+     * leaves it out. It is kept in memory too, so with <code>-Ddd.runSize</code> it takes
+     * <code>-Ddd.textIndex=true</code>.</li>
+     * <li>"FSTF" and "FSTR": minimal automata over the keys and over the keys spelled backwards, for wildcard and
+     * suffix searches, see KeyAutomaton. <code>-Ddd.patternIndex=false</code> leaves them out, and so does an
+     * automaton of 16 MB or more, past what its offsets reach. Every key is held until they are built, so with
+     * <code>-Ddd.runSize</code> they take <code>-Ddd.patternIndex=true</code>.</li>
+     * </ul>
+     *
+     * The directory holds the number of entries, the dictionary name, the offset and length of the preset dictionary,
+     * the offset of the first block and the page count, followed by the offset, length, CRC32 and first key of every
+     * page, then the section count and the tag, offset and length of every section, and ends with its own CRC32.
+     * Readers skip sections they do not know.
+     */
+    private static class DDWriter {
+        private static final int VERSION = 5;
+        private static final int HEADER_SIZE = 13;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream page = new ByteArrayOutputStream();
+        private final DataOutputStream pageOut = new DataOutputStream(page);
+        private final File pagesFile;
+        private final OutputStream pages;
+        private int pagesSize;
+        private final int blocksOffset;
+        private final int pageSize = Integer.getInteger("dd.pageSize", 32000).intValue();
+        private final CRC32 crc = new CRC32();
+        private final List<Integer> pageCrcs = new ArrayList<Integer>();
+        private final int defTotal;
+        private final String dicName;
+        private final int restartInterval = Integer.getInteger("dd.restartInterval", 16).intValue();
+        private final List<Integer> restarts = new ArrayList<Integer>();
+        private int pageRecords;
+        private byte[] lastKey;
+        private final List<Integer> pageLengths = new ArrayList<Integer>();
+        private final List<Integer> pageOffsets = new ArrayList<Integer>();
+        private final List<byte[]> startKeys = new ArrayList<byte[]>();
+        private final byte[] presetDictionary;
+        private final int blockSize = Integer.getInteger("dd.blockSize", 8 * 1024).intValue();
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private final List<Words> blockWords = new ArrayList<Words>();
+        // block offset, block length, definition offset and length, shared by identical definitions
+        private final List<int[]> blockLocations = new ArrayList<int[]>();
+        private final List<int[]> pendingLocations = new ArrayList<int[]>();
+        private final int dedupEntries = Integer.getInteger("dd.dedupEntries", 65536).intValue();
+        private final Map<ByteBuffer, int[]> written = new LinkedHashMap<ByteBuffer, int[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, int[]> eldest) {
+                return size() > dedupEntries;
+            }
+        };
+        private final MessageDigest digest;
+        private int duplicates;
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        private final byte[] output = new byte[1024 * 8];
+        private long rawSize, compressedSize, duplicateSize;
+        private final byte[] bloom;
+        private final int bloomHashes;
+        private final DeleteIndex deleteIndex;
+        private final TextIndex textIndex;
+        private final KeyAutomaton keys, reversedKeys;
+        private int records;
+        private final List<Integer> pageFirstRecords = new ArrayList<Integer>();
+        private final List<String> sectionTags = new ArrayList<String>();
+        private final List<int[]> sectionRanges = new ArrayList<int[]>();
+
+        /**
+         * @param bounded whether memory must not grow with the dictionary, which leaves out the indexes built in
+         * memory unless they are asked for.
+         */
+        private DDWriter(int defTotal, String dicName, byte[] presetDictionary, boolean bounded) throws IOException {
+            this.defTotal = defTotal;
+            this.dicName = dicName;
+            this.presetDictionary = presetDictionary;
+            double bloomRate = Double.parseDouble(System.getProperty("dd.bloomRate", "0.01"));
+            if (bloomRate > 0) {
+                // optimal size and hash count for defTotal keys
+                long bits = Math.max(64, (long) Math.ceil(-defTotal * Math.log(bloomRate) / (Math.log(2) * Math.log(2))));
+                bloom = new byte[(int) Math.min((bits + 7) / 8, Integer.MAX_VALUE / 8)];
+                bloomHashes = Math.max(1, (int) Math.round((double) bloom.length * 8 / Math.max(1, defTotal) * Math.log(2)));
+            } else {
+                bloom = null;
+                bloomHashes = 0;
+            }
+            int fuzzyDistance = Integer.getInteger("dd.fuzzyDistance", bounded ? 0 : 1).intValue();
+            deleteIndex = fuzzyDistance > 0
+                    ? new DeleteIndex(fuzzyDistance, Integer.getInteger("dd.fuzzyPrefix", 6).intValue()) : null;
+            textIndex = Boolean.parseBoolean(System.getProperty("dd.textIndex", String.valueOf(!bounded)))
+                    ? new TextIndex() : null;
+            if (Boolean.parseBoolean(System.getProperty("dd.patternIndex", String.valueOf(!bounded)))) {
+                keys = new KeyAutomaton();
+                reversedKeys = new KeyAutomaton();
+            } else {
+                keys = null;
+                reversedKeys = null;
+            }
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ARCHIVE_FILE)));
+            // the directory offset and length are filled in by close()
+            out.write(new byte[HEADER_SIZE]);
+            out.write(presetDictionary);
+            blocksOffset = out.size();
+            pagesFile = File.createTempFile("dict", ".pages");
+            pagesFile.deleteOnExit();
+            pages = new BufferedOutputStream(new FileOutputStream(pagesFile));
+        }
+
+        private void write(Words w) throws IOException {
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest(w.s2));
+            int[] location = written.get(hash);
+            if (location != null) {
+                // same bytes as an earlier definition, point at its copy
+                duplicates++;
+                duplicateSize += w.s2.length;
+                blockWords.add(w);
+                blockLocations.add(location);
+                return;
+            }
+            if (block.size() > 0 && block.size() + w.s2.length > blockSize) {
+                flushBlock();
+            }
+            location = new int[] { 0, 0, block.size(), w.s2.length };
+            written.put(hash, location);
+            blockWords.add(w);
+            blockLocations.add(location);
+            pendingLocations.add(location);
+            block.write(w.s2, 0, w.s2.length);
+        }
+
+        private void flushBlock() throws IOException {
+            deflater.reset();
+            if (presetDictionary.length > 0) {
+                deflater.setDictionary(presetDictionary);
+            }
+            deflater.setInput(block.toByteArray());
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.size());
+            while (!deflater.finished()) {
+                compressed.write(output, 0, deflater.deflate(output));
+            }
+            int blockLen = compressed.size();
+            int blockOffset = out.size() - blocksOffset;
+            compressed.writeTo(out);
+            crc.reset();
+            crc.update(compressed.toByteArray());
+            out.writeInt((int) crc.getValue());
+            rawSize += block.size();
+            compressedSize += blockLen;
+            for (int[] location : pendingLocations) {
+                location[0] = blockOffset;
+                location[1] = blockLen;
+            }
+            pendingLocations.clear();
+            block.reset();
+            writeRecords();
+        }
+
+        private void writeRecords() throws IOException {
+            for (int i = 0; i < blockWords.size(); i++) {
+                int[] location = blockLocations.get(i);
+                if (textIndex != null) {
+                    textIndex.add(blockWords.get(i).s2, records);
+                }
+                writeRecord(blockWords.get(i).key, location[0], location[1], location[2], location[3]);
+            }
+            blockWords.clear();
+            blockLocations.clear();
+        }
+
+        private void writeRecord(byte[] key, int blockOffset, int blockLen, int defOffset, int defLen)
+                throws IOException {
+            if (page.size() >= pageSize) {
+                closePage();
+            }
+            if (bloom != null) {
+                int h1 = bloomHash1(key), h2 = bloomHash2(key), bits = bloom.length * 8;
+                for (int i = 0; i < bloomHashes; i++) {
+                    int bit = ((h1 + i * h2) & 0x7fffffff) % bits;
+                    bloom[bit >>> 3] |= 1 << (bit & 7);
+                }
+            }
+            if (deleteIndex != null) {
+                deleteIndex.add(new String(key, UTF_8), records);
+            }
+            if (keys != null) {
+                keys.add(key);
+                reversedKeys.add(new StringBuilder(new String(key, UTF_8)).reverse().toString().getBytes(UTF_8));
+            }
+            int shared = 0;
+            if (pageRecords == 0) {
+                startKeys.add(key);
+                pageFirstRecords.add(Integer.valueOf(records));
+            }
+            if (pageRecords % restartInterval == 0) {
+                restarts.add(Integer.valueOf(page.size()));
+            } else {
+                int n = Math.min(lastKey.length, key.length);
+                while (shared < n && lastKey[shared] == key[shared]) {
+                    shared++;
+                }
+            }
+            writeVarInt(pageOut, shared);
+            writeVarInt(pageOut, key.length - shared);
+            pageOut.write(key, shared, key.length - shared);
+            writeVarInt(pageOut, blockOffset);
+            writeVarInt(pageOut, blockLen);
+            writeVarInt(pageOut, defOffset);
+            writeVarInt(pageOut, defLen);
+            lastKey = key;
+            pageRecords++;
+            records++;
+        }
+
+        private void closePage() throws IOException {
+            for (Integer restart : restarts) {
+                pageOut.writeInt(restart.intValue());
+            }
+            pageOut.writeInt(restarts.size());
+            restarts.clear();
+            pageRecords = 0;
+            crc.reset();
+            crc.update(page.toByteArray());
+            pageCrcs.add(Integer.valueOf((int) crc.getValue()));
+            pageOffsets.add(Integer.valueOf(pagesSize));
+            pageLengths.add(Integer.valueOf(page.size()));
+            pagesSize += page.size();
+            page.writeTo(pages);
+            page.reset();
+        }
+
+        private void beginSection(String tag) {
+            sectionTags.add(tag);
+            sectionRanges.add(new int[] { out.size(), 0 });
+        }
+
+        private void endSection() {
+            int[] range = sectionRanges.get(sectionRanges.size() - 1);
+            range[1] = out.size() - range[0];
+        }
+
+        private void close() throws IOException {
+            if (!pendingLocations.isEmpty()) {
+                flushBlock();
+            } else if (!blockWords.isEmpty()) {
+                // only duplicates left, their blocks are already written
+                writeRecords();
+            }
+            deflater.end();
+            closePage();
+            pages.close();
+            int pagesOffset = out.size();
+            InputStream in = new FileInputStream(pagesFile);
+            writeInputStream(in, out);
+            in.close();
+            pagesFile.delete();
+            if (bloom != null) {
+                beginSection("BLOM");
+                out.writeInt(bloomHashes);
+                out.write(bloom);
+                endSection();
+            }
+            if (deleteIndex != null || textIndex != null) {
+                beginSection("RECN");
+                for (Integer first : pageFirstRecords) {
+                    out.writeInt(first.intValue());
+                }
+                endSection();
+            }
+            if (deleteIndex != null) {
+                beginSection("FUZZ");
+                deleteIndex.write(out);
+                endSection();
+            }
+            if (textIndex != null) {
+                beginSection("TEXT");
+                textIndex.write(out);
+                endSection();
+            }
+            // the device does without the automata, only without pattern search
+            boolean automata = keys != null && keys.encode() && reversedKeys.encode();
+            if (automata) {
+                beginSection("FSTF");
+                keys.write(out);
+                endSection();
+                beginSection("FSTR");
+                reversedKeys.write(out);
+                endSection();
+            } else if (keys != null) {
+                System.err.println("词形自动机超过16 MB，不写入通配符索引。");
+            }
+            // size() sticks at Integer.MAX_VALUE once it overflows
+            if (out.size() == Integer.MAX_VALUE) {
+                throw new IOException("Dictionary over 2 GB");
+            }
+
+            ByteArrayOutputStream directory = new ByteArrayOutputStream();
+            DataOutputStream out2 = new DataOutputStream(directory);
+            out2.writeInt(defTotal);
+            out2.writeUTF(dicName);
+            out2.writeInt(HEADER_SIZE);
+            out2.writeInt(presetDictionary.length);
+            out2.writeInt(blocksOffset);
+            out2.writeInt(pageLengths.size());
+            for (int i = 0; i < pageLengths.size(); i++) {
+                out2.writeInt(pagesOffset + pageOffsets.get(i).intValue());
+                out2.writeInt(pageLengths.get(i).intValue());
+                out2.writeInt(pageCrcs.get(i).intValue());
+                out2.writeShort(startKeys.get(i).length);
+                out2.write(startKeys.get(i));
+            }
+            out2.writeInt(sectionTags.size());
+            for (int i = 0; i < sectionTags.size(); i++) {
+                out2.write(sectionTags.get(i).getBytes(), 0, 4);
+                out2.writeInt(sectionRanges.get(i)[0]);
+                out2.writeInt(sectionRanges.get(i)[1]);
+            }
+            crc.reset();
+            crc.update(directory.toByteArray());
+            out2.writeInt((int) crc.getValue());
+            int directoryOffset = out.size();
+            directory.writeTo(out);
+            out.close();
+
+            RandomAccessFile archive = new RandomAccessFile(ARCHIVE_FILE, "rw");
+            try {
+                archive.write("DDIC".getBytes(), 0, 4);
+                archive.writeByte(VERSION);
+                archive.writeInt(directoryOffset);
+                archive.writeInt(directory.size());
+            } finally {
+                archive.close();
+            }
+            if (bloom != null) {
+                System.out.println("Bloom过滤器：" + bloom.length / 1024 + " KB，" + bloomHashes + "个哈希");
+            }
+            if (deleteIndex != null) {
+                System.out.println("模糊索引：" + deleteIndex.size() + "项");
+            }
+            if (textIndex != null) {
+                System.out.println("全文索引：" + textIndex.size() + "个词，" + textIndex.postings() + "项");
+            }
+            if (automata) {
+                System.out.println("词形自动机：" + keys.size() + " / " + reversedKeys.size() + " B");
+            }
+            System.out.println("重复释义：" + duplicates + "组，" + duplicateSize / 1024 + " KB");
+            System.out.println("释义压缩：" + rawSize / 1024 + " KB -> " + compressedSize / 1024 + " KB");
+        }
+    }
+
+    /**
+     * Symmetric delete index: every headword is filed under the first <code>prefix</code> letters of it and each
+     * string made by deleting up to <code>distance</code> of those letters. A misspelled word is looked up the same
+     * way under its own prefix and deletions, and every headword filed under any of them is a candidate whose real
+     * edit distance the reader then checks. With distance 1 this finds the headwords one edit away, and two edits
+     * away when at most one of them removes a letter from the headword; only looking at the prefix keeps long phrases
+     * from filling the index.
+     *
+     * Written as the int distance, the int prefix length, the int number of hash bits used for buckets, the int byte
+     * offset of every bucket and one more for the end, and then the buckets. Bucket b holds the hashes whose top bits
+     * are b in unsigned order, each as the int FNV-1a hash of the UTF-16 chars of the string, the varint count of
+     * headwords filed under it and their record numbers, the first as a varint and the others as varint differences
+     * to the one before. Headwords sharing a prefix are neighbours, so most differences take a byte.
+     */
+    private static class DeleteIndex {
+        private final int distance, prefix;
+        private long[] entries = new long[1024];
+        private int size;
+
+        private DeleteIndex(int distance, int prefix) {
+            this.distance = distance;
+            this.prefix = prefix;
+        }
+
+        private void add(String word, int record) {
+            if (word.length() > prefix) {
+                word = word.substring(0, prefix);
+            }
+            Set<String> deletes = new HashSet<String>();
+            deletes.add(word);
+            addDeletes(word, distance, deletes);
+            for (String delete : deletes) {
+                if (size == entries.length) {
+                    entries = Arrays.copyOf(entries, size * 2);
+                }
+                // flipping the sign bit makes the signed sort order the unsigned hash order
+                entries[size++] = ((long) (hash(delete) ^ 0x80000000) << 32) | (record & 0xffffffffL);
+            }
+        }
+
+        private static void addDeletes(String word, int distance, Set<String> deletes) {
+            for (int i = 0; i < word.length(); i++) {
+                String delete = word.substring(0, i) + word.substring(i + 1);
+                if (deletes.add(delete) && distance > 1) {
+                    addDeletes(delete, distance - 1, deletes);
+                }
+            }
+        }
+
+        private static int hash(String s) {
+            int h = 0x811c9dc5;
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * 0x01000193;
+            }
+            return h;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            Arrays.sort(entries, 0, size);
+            // about 32 entries a bucket
+            int bits = 0;
+            while (bits < 24 && (size >>> (bits + 5)) > 0) {
+                bits++;
+            }
+            ByteArrayOutputStream buckets = new ByteArrayOutputStream();
+            DataOutputStream bucketsOut = new DataOutputStream(buckets);
+            out.writeInt(distance);
+            out.writeInt(prefix);
+            out.writeInt(bits);
+            int i = 0;
+            for (int bucket = 0; bucket < 1 << bits; bucket++) {
+                out.writeInt(bucketsOut.size());
+                while (i < size && (bits == 0 ? 0 : hashAt(i) >>> (32 - bits)) == bucket) {
+                    int end = i + 1;
+                    while (end < size && hashAt(end) == hashAt(i)) {
+                        end++;
+                    }
+                    bucketsOut.writeInt(hashAt(i));
+                    writeVarInt(bucketsOut, end - i);
+                    int record = 0;
+                    for (; i < end; i++) {
+                        writeVarInt(bucketsOut, (int) entries[i] - record);
+                        record = (int) entries[i];
+                    }
+                }
+            }
+            out.writeInt(bucketsOut.size());
+            buckets.writeTo(out);
+        }
+
+        private int hashAt(int i) {
+            return (int) (entries[i] >>> 32) ^ 0x80000000;
+        }
+    }
+
+    /**
+     * Inverted index from the words of the definitions to the records of the headwords they define, for searching
+     * definitions rather than headwords, say Chinese to English through an English to Chinese dictionary.
+     *
+     * The markup is skipped and the text split into terms the way Dictionary.search() splits a query: runs of Latin,
+     * Greek and Cyrillic letters and digits, folded to lower case, make one term each when at least two characters
+     * long, while runs of CJK characters make a term of every two neighbouring characters, or of the one character of
+     * a run that short. Phonetics and punctuation separate terms.
+     *
+     * Written as the int number of terms, the int number of groups they are cut into, the int length of the group
+     * directory and the int length of all groups. The directory has the int offset of each group from the first group
+     * and the short length and UTF-8 bytes of its first term; a group ends where the next one starts. Each group holds
+     * up to GROUP_SIZE terms in UTF-8 byte order, front coded like the page keys: the varint length shared with the
+     * previous term and of the rest, the rest, and then varints for the number of records, and the offset from the
+     * first posting list and the length of the posting list of the term. Posting lists follow the groups, each the
+     * first record number as a varint and the differences to the one before as varints, so a search reads bytes in
+     * proportion to how many records its terms are in.
+     */
+    private static class TextIndex {
+        private static final int GROUP_SIZE = 64;
+        private static final int MAX_TERM = 64;
+        private final Map<String, Postings> terms = new HashMap<String, Postings>();
+        private long postings;
+
+        private static class Postings {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+            private final DataOutputStream out = new DataOutputStream(bytes);
+            private int count, last;
+        }
+
+        private void add(byte[] definition, int record) throws IOException {
+            Set<String> found = new HashSet<String>();
+            terms(new String(definition, UTF_8), found);
+            for (String term : found) {
+                Postings list = terms.get(term);
+                if (list == null) {
+                    list = new Postings();
+                    terms.put(term, list);
+                }
+                writeVarInt(list.out, list.count == 0 ? record : record - list.last);
+                list.last = record;
+                list.count++;
+                postings++;
+            }
+        }
+
+        private static void terms(String text, Set<String> terms) {
+            int n = text.length();
+            for (int i = 0; i < n;) {
+                char c = text.charAt(i);
+                if (c == '<') {
+                    int end = text.indexOf('>', i);
+                    i = end < 0 ? n : end + 1;
+                } else if (isCjk(c)) {
+                    int start = i;
+                    while (i < n && isCjk(text.charAt(i))) {
+                        i++;
+                    }
+                    if (i - start == 1) {
+                        terms.add(text.substring(start, i));
+                    }
+                    for (int j = start; j + 1 < i; j++) {
+                        terms.add(text.substring(j, j + 2));
+                    }
+                } else if (isLetterOrDigit(c)) {
+                    int start = i;
+                    while (i < n && isLetterOrDigit(text.charAt(i))) {
+                        i++;
+                    }
+                    if (i - start >= 2 && i - start <= MAX_TERM) {
+                        terms.add(fold(text.substring(start, i)));
+                    }
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private static boolean isCjk(char c) {
+            return c >= 0x3040 && c <= 0x30ff || c >= 0x3400 && c <= 0x4dbf || c >= 0x4e00 && c <= 0x9fff || c >= 0xac00
+                    && c <= 0xd7af || c >= 0xf900 && c <= 0xfaff;
+        }
+
+        private static boolean isLetterOrDigit(char c) {
+            return c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= 0xc0 && c <= 0x24f
+                    && c != 0xd7 && c != 0xf7 || c >= 0x370 && c <= 0x52f;
+        }
+
+        private int size() {
+            return terms.size();
+        }
+
+        private long postings() {
+            return postings;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            List<byte[]> keys = new ArrayList<byte[]>(terms.size());
+            for (String term : terms.keySet()) {
+                keys.add(term.getBytes(UTF_8));
+            }
+            Collections.sort(keys, new Comparator<byte[]>() {
+                public int compare(byte[] a, byte[] b) {
+                    return compareKeys(a, b);
+                }
+            });
+            ByteArrayOutputStream directory = new ByteArrayOutputStream();
+            DataOutputStream directoryOut = new DataOutputStream(directory);
+            ByteArrayOutputStream groups = new ByteArrayOutputStream();
+            DataOutputStream groupsOut = new DataOutputStream(groups);
+            ByteArrayOutputStream lists = new ByteArrayOutputStream();
+            byte[] last = null;
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                int shared = 0;
+                if (i % GROUP_SIZE == 0) {
+                    directoryOut.writeInt(groupsOut.size());
+                    directoryOut.writeShort(key.length);
+                    directoryOut.write(key);
+                } else {
+                    int n = Math.min(last.length, key.length);
+                    while (shared < n && last[shared] == key[shared]) {
+                        shared++;
+                    }
+                }
+                Postings list = terms.get(new String(key, UTF_8));
+                writeVarInt(groupsOut, shared);
+                writeVarInt(groupsOut, key.length - shared);
+                groupsOut.write(key, shared, key.length - shared);
+                writeVarInt(groupsOut, list.count);
+                writeVarInt(groupsOut, lists.size());
+                writeVarInt(groupsOut, list.bytes.size());
+                list.bytes.writeTo(lists);
+                last = key;
+            }
+            out.writeInt(keys.size());
+            out.writeInt((keys.size() + GROUP_SIZE - 1) / GROUP_SIZE);
+            out.writeInt(directory.size());
+            out.writeInt(groupsOut.size());
+            directory.writeTo(out);
+            groups.writeTo(out);
+            lists.writeTo(out);
+        }
+    }
+
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private final Words current = new Words();
+
+        private RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+        }
+
+        private boolean next() throws IOException {
+            try {
+                current.key = new byte[in.readUnsignedShort()];
+                in.readFully(current.key);
+                current.entry = in.readInt();
+                return true;
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+        }
+
+        public int compareTo(RunReader o) {
+            int c = current.compareTo(o.current);
+            return c != 0 ? c : current.entry - o.current.entry;
         }
     }
     private static class SensitiveStringDecoder {
         public final String name;
+        private final Charset cs;
         private final CharsetDecoder cd;
 
         private SensitiveStringDecoder(Charset cs) {
             this.cd = cs.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
                     .onUnmappableCharacter(CodingErrorAction.REPORT);
             this.name = cs.name();
+            this.cs = cs;
+        }
+
+        SensitiveStringDecoder copy() {
+            return new SensitiveStringDecoder(cs);
         }
 
-        char[] decode(byte[] ba, int off, int len) {
+        char[] decode(ByteBuffer src, int off, int len) {
             int en = (int) (len * (double) cd.maxCharsPerByte());
             char[] ca = new char[en];
             if (len == 0)
                 return ca;
             cd.reset();
-            ByteBuffer bb = ByteBuffer.wrap(ba, off, len);
+            ByteBuffer bb = src.duplicate();
+            bb.limit(off + len);
+            bb.position(off);
             CharBuffer cb = CharBuffer.wrap(ca);
             try {
                 CoderResult cr = cd.decode(bb, cb, true);
@@ -446,5 +1589,192 @@ public class LingoesLd2Reader {
             }
         }
     }
-}
 
+    /**
+     * Minimal acyclic automaton accepting a set of keys, built from the keys in sorted order by the incremental
+     * algorithm of Daciuk et al.: the states of the previous key that the next one no longer shares are replaced by an
+     * equal state already seen, if there is one, so equal suffixes are stored once. Keys may be added in any order
+     * since they are sorted before building, and repeats are dropped.
+     *
+     * Written as the int offset of the start state and the int byte length of the states that follow. A state is its
+     * arcs in label order, each a flags byte, the label byte and, unless a flag says otherwise, the 3 byte offset of
+     * the state it leads to. ARC_LAST marks the last arc of a state, ARC_FINAL an arc ending a key, ARC_STOP an arc to
+     * the state without arcs and ARC_NEXT an arc to the state written right after this one, which needs no offset.
+     * Labels are the UTF-8 bytes of the keys.
+     */
+    private static class KeyAutomaton {
+        private static final int ARC_LAST = 1, ARC_FINAL = 2, ARC_STOP = 4, ARC_NEXT = 8;
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+        private final Map<State, State> register = new HashMap<State, State>();
+        private byte[] bytes;
+        private int start;
+
+        private static class State {
+            private boolean accepting;
+            private byte[] labels = new byte[0];
+            private State[] targets = new State[0];
+            private int address = -1;
+
+            private State last() {
+                return targets.length == 0 ? null : targets[targets.length - 1];
+            }
+
+            private void add(byte label, State target) {
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                targets = Arrays.copyOf(targets, targets.length + 1);
+                labels[labels.length - 1] = label;
+                targets[targets.length - 1] = target;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                State s = (State) o;
+                if (accepting != s.accepting || !Arrays.equals(labels, s.labels)) {
+                    return false;
+                }
+                // targets are already registered, so equal ones are the same
+                for (int i = 0; i < targets.length; i++) {
+                    if (targets[i] != s.targets[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int hashCode() {
+                int h = accepting ? 1 : 0;
+                for (int i = 0; i < targets.length; i++) {
+                    h = 31 * (31 * h + labels[i]) + System.identityHashCode(targets[i]);
+                }
+                return h;
+            }
+        }
+
+        private void add(byte[] key) {
+            keys.add(key);
+        }
+
+        private int size() {
+            return bytes == null ? 0 : bytes.length;
+        }
+
+        private State build() {
+            Collections.sort(keys, new Comparator<byte[]>() {
+                public int compare(byte[] a, byte[] b) {
+                    return compareKeys(a, b);
+                }
+            });
+            State root = new State();
+            byte[] previous = null;
+            for (byte[] key : keys) {
+                if (previous != null && Arrays.equals(previous, key)) {
+                    continue;
+                }
+                State state = root;
+                int shared = 0;
+                while (shared < key.length && state.targets.length > 0
+                        && state.labels[state.labels.length - 1] == key[shared]) {
+                    state = state.last();
+                    shared++;
+                }
+                if (state.targets.length > 0) {
+                    replaceOrRegister(state);
+                }
+                for (int i = shared; i < key.length; i++) {
+                    State next = new State();
+                    state.add(key[i], next);
+                    state = next;
+                }
+                state.accepting = true;
+                previous = key;
+            }
+            if (root.targets.length > 0) {
+                replaceOrRegister(root);
+            }
+            keys.clear();
+            register.clear();
+            return root;
+        }
+
+        private void replaceOrRegister(State state) {
+            State child = state.last();
+            if (child.targets.length > 0) {
+                replaceOrRegister(child);
+            }
+            State same = register.get(child);
+            if (same != null) {
+                state.targets[state.targets.length - 1] = same;
+            } else {
+                register.put(child, child);
+            }
+        }
+
+        /**
+         * Lays the states out as they are written.
+         *
+         * @return false if they take 16 MB or more, past what the 3 byte offsets reach.
+         */
+        private boolean encode() throws IOException {
+            State root = build();
+            ByteArrayOutputStream states = new ByteArrayOutputStream();
+            List<State> pending = new ArrayList<State>();
+            List<int[]> patches = new ArrayList<int[]>();
+            List<State> patchTargets = new ArrayList<State>();
+            pending.add(root);
+            ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+            while (!pending.isEmpty()) {
+                State state = pending.remove(pending.size() - 1);
+                // each state whose address is settled writes the one after it
+                while (state != null && state.address < 0 && state.targets.length > 0) {
+                    state.address = states.size();
+                    State next = null;
+                    stateBytes.reset();
+                    for (int i = 0; i < state.targets.length; i++) {
+                        State target = state.targets[i];
+                        int flags = (i == state.targets.length - 1 ? ARC_LAST : 0)
+                                | (target.accepting ? ARC_FINAL : 0);
+                        if (target.targets.length == 0) {
+                            flags |= ARC_STOP;
+                        } else if (next == null && target.address < 0) {
+                            flags |= ARC_NEXT;
+                            next = target;
+                        }
+                        stateBytes.write(flags);
+                        stateBytes.write(state.labels[i]);
+                        if ((flags & (ARC_STOP | ARC_NEXT)) == 0) {
+                            patches.add(new int[] { states.size() + stateBytes.size() });
+                            patchTargets.add(target);
+                            stateBytes.write(0);
+                            stateBytes.write(0);
+                            stateBytes.write(0);
+                            if (target.address < 0) {
+                                pending.add(target);
+                            }
+                        }
+                    }
+                    stateBytes.writeTo(states);
+                    state = next;
+                }
+            }
+            if (states.size() >= 1 << 24) {
+                return false;
+            }
+            bytes = states.toByteArray();
+            for (int i = 0; i < patches.size(); i++) {
+                int at = patches.get(i)[0], address = patchTargets.get(i).address;
+                bytes[at] = (byte) (address >>> 16);
+                bytes[at + 1] = (byte) (address >>> 8);
+                bytes[at + 2] = (byte) address;
+            }
+            start = root.targets.length == 0 ? -1 : root.address;
+            return true;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(start);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
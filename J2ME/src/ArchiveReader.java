@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads byte ranges of a resource that is stored uncompressed in the jar.
+ * MIDP has no seekable resources, so one stream is kept open and skipped
+ * forward; it is only reopened when a read goes back before its position.
+ * Lookups mostly move forward through the archive, and skipping a stored
+ * entry costs no inflating, so a read costs about its own length.
+ */
+public final class ArchiveReader
+{
+	private final String resource;
+	private InputStream in;
+	private int position;
+
+	public ArchiveReader(String resource)
+	{
+		this.resource=resource;
+	}
+
+	/**
+	 * @return whether the resource exists.
+	 */
+	public synchronized boolean exists() throws IOException
+	{
+		close();
+		in=getClass().getResourceAsStream(resource);
+		return in!=null;
+	}
+
+	public synchronized void read(int offset,byte[] b,int off,int len) throws IOException
+	{
+		if(in==null||offset<position)
+		{
+			close();
+			in=getClass().getResourceAsStream(resource);
+			if(in==null) throw new IOException("Missing "+resource);
+		}
+		while(position<offset)
+		{
+			long skipped=in.skip(offset-position);
+			if(skipped<=0) throw new IOException("Unexpected end of "+resource);
+			position+=skipped;
+		}
+		while(len>0)
+		{
+			int n=in.read(b,off,len);
+			if(n<0) throw new IOException("Unexpected end of "+resource);
+			off+=n;
+			len-=n;
+			position+=n;
+		}
+	}
+
+	public byte[] read(int offset,int length) throws IOException
+	{
+		byte[] b=new byte[length];
+		read(offset,b,0,length);
+		return b;
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if(in!=null)
+		{
+			InputStream closing=in;
+			in=null;
+			closing.close();
+		}
+		position=0;
+	}
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+
+/**
+ * Decoder for the raw deflate (RFC 1951) definition blocks written by
+ * LingoesLd2Reader. The preset dictionary is copied in front of the output so
+ * that back references can reach into it, the same way zlib handles it.
+ *
+ * Codes are decoded one bit at a time with canonical code counts, which is
+ * slow next to table driven inflaters but small, and the blocks are only a
+ * few KB.
+ */
+public final class BlockInflater
+{
+	private static final short[] LENGTH_BASE={3,4,5,6,7,8,9,10,11,13,15,17,19,23,27,31,35,43,51,59,67,83,99,115,131,163,195,227,258};
+	private static final byte[] LENGTH_EXTRA={0,0,0,0,0,0,0,0,1,1,1,1,2,2,2,2,3,3,3,3,4,4,4,4,5,5,5,5,0};
+	private static final short[] DIST_BASE={1,2,3,4,5,7,9,13,17,25,33,49,65,97,129,193,257,385,513,769,1025,1537,2049,3073,4097,6145,8193,12289,16385,24577};
+	private static final byte[] DIST_EXTRA={0,0,0,0,1,1,2,2,3,3,4,4,5,5,6,6,7,7,8,8,9,9,10,10,11,11,12,12,13,13};
+	private static final byte[] CODE_LENGTH_ORDER={16,17,18,0,8,7,9,6,10,5,11,4,12,3,13,2,14,1,15};
+
+	private byte[] in;
+	private int inPos,inEnd,bitBuf,bitCount;
+	private byte[] out;
+	private int outPos;
+
+	private final short[] lenCount=new short[16],lenSymbol=new short[288];
+	private final short[] distCount=new short[16],distSymbol=new short[30];
+	private final short[] offs=new short[16];
+	private final byte[] lengths=new byte[288+32];
+
+	/**
+	 * @param dict the preset dictionary, may be empty.
+	 * @param data the compressed block is len bytes at off.
+	 * @param sizeHint expected size of the inflated block.
+	 * @return the inflated block, without the dictionary.
+	 */
+	public synchronized byte[] inflate(byte[] dict,byte[] data,int off,int len,int sizeHint) throws IOException
+	{
+		in=data;
+		inPos=off;
+		inEnd=off+len;
+		bitBuf=0;
+		bitCount=0;
+		out=new byte[dict.length+Math.max(sizeHint,len*4)];
+		System.arraycopy(dict,0,out,0,dict.length);
+		outPos=dict.length;
+		try
+		{
+			boolean last;
+			do
+			{
+				last=bits(1)==1;
+				switch(bits(2))
+				{
+					case 0: stored(); break;
+					case 1: fixed(); break;
+					case 2: dynamic(); break;
+					default: throw new IOException("Invalid block type");
+				}
+			} while(!last);
+			byte[] result=new byte[outPos-dict.length];
+			System.arraycopy(out,dict.length,result,0,result.length);
+			return result;
+		} finally
+		{
+			in=null;
+			out=null;
+		}
+	}
+
+	private int bits(int need) throws IOException
+	{
+		while(bitCount<need)
+		{
+			if(inPos>=inEnd) throw new IOException("Unexpected end of block");
+			bitBuf|=(in[inPos++]&0xff)<<bitCount;
+			bitCount+=8;
+		}
+		int val=bitBuf&((1<<need)-1);
+		bitBuf>>>=need;
+		bitCount-=need;
+		return val;
+	}
+
+	private void ensure(int n)
+	{
+		if(outPos+n>out.length)
+		{
+			byte[] grown=new byte[Math.max(out.length*2,outPos+n)];
+			System.arraycopy(out,0,grown,0,outPos);
+			out=grown;
+		}
+	}
+
+	private void stored() throws IOException
+	{
+		bitBuf=0;
+		bitCount=0;
+		if(inPos+4>inEnd) throw new IOException("Unexpected end of block");
+		int len=(in[inPos]&0xff)|((in[inPos+1]&0xff)<<8);
+		int nlen=(in[inPos+2]&0xff)|((in[inPos+3]&0xff)<<8);
+		inPos+=4;
+		if(len!=(~nlen&0xffff)) throw new IOException("Invalid stored block");
+		if(inPos+len>inEnd) throw new IOException("Unexpected end of block");
+		ensure(len);
+		System.arraycopy(in,inPos,out,outPos,len);
+		inPos+=len;
+		outPos+=len;
+	}
+
+	private int decode(short[] count,short[] symbol) throws IOException
+	{
+		int code=0,first=0,index=0;
+		for(int len=1;len<16;len++)
+		{
+			code|=bits(1);
+			int n=count[len];
+			if(code-n<first) return symbol[index+(code-first)];
+			index+=n;
+			first+=n;
+			first<<=1;
+			code<<=1;
+		}
+		throw new IOException("Invalid code");
+	}
+
+	private void construct(short[] count,short[] symbol,byte[] length,int off,int n)
+	{
+		for(int len=0;len<16;len++) count[len]=0;
+		for(int sym=0;sym<n;sym++) count[length[off+sym]]++;
+		offs[1]=0;
+		for(int len=1;len<15;len++) offs[len+1]=(short)(offs[len]+count[len]);
+		for(int sym=0;sym<n;sym++)
+		{
+			if(length[off+sym]!=0) symbol[offs[length[off+sym]]++]=(short)sym;
+		}
+	}
+
+	private void codes() throws IOException
+	{
+		int sym;
+		while((sym=decode(lenCount,lenSymbol))!=256)
+		{
+			if(sym<256)
+			{
+				ensure(1);
+				out[outPos++]=(byte)sym;
+				continue;
+			}
+			sym-=257;
+			if(sym>=29) throw new IOException("Invalid length code");
+			int len=LENGTH_BASE[sym]+bits(LENGTH_EXTRA[sym]);
+			sym=decode(distCount,distSymbol);
+			if(sym>=30) throw new IOException("Invalid distance code");
+			int dist=DIST_BASE[sym]+bits(DIST_EXTRA[sym]);
+			if(dist>outPos) throw new IOException("Distance too far back");
+			ensure(len);
+			// byte by byte, the copy may overlap its own output
+			for(int from=outPos-dist;len>0;len--) out[outPos++]=out[from++];
+		}
+	}
+
+	private void fixed() throws IOException
+	{
+		int sym=0;
+		for(;sym<144;sym++) lengths[sym]=8;
+		for(;sym<256;sym++) lengths[sym]=9;
+		for(;sym<280;sym++) lengths[sym]=7;
+		for(;sym<288;sym++) lengths[sym]=8;
+		construct(lenCount,lenSymbol,lengths,0,288);
+		for(sym=0;sym<30;sym++) lengths[sym]=5;
+		construct(distCount,distSymbol,lengths,0,30);
+		codes();
+	}
+
+	private void dynamic() throws IOException
+	{
+		int nlen=bits(5)+257,ndist=bits(5)+1,ncode=bits(4)+4;
+		if(nlen>286||ndist>30) throw new IOException("Invalid code lengths");
+		int i;
+		for(i=0;i<19;i++) lengths[CODE_LENGTH_ORDER[i]]=(byte)(i<ncode?bits(3):0);
+		construct(lenCount,lenSymbol,lengths,0,19);
+		i=0;
+		while(i<nlen+ndist)
+		{
+			int sym=decode(lenCount,lenSymbol);
+			if(sym<16)
+			{
+				lengths[i++]=(byte)sym;
+				continue;
+			}
+			int len=0,repeat;
+			if(sym==16)
+			{
+				if(i==0) throw new IOException("Repeat with no first length");
+				len=lengths[i-1];
+				repeat=3+bits(2);
+			} else if(sym==17) repeat=3+bits(3);
+			else repeat=11+bits(7);
+			if(i+repeat>nlen+ndist) throw new IOException("Too many code lengths");
+			while(repeat-->0) lengths[i++]=(byte)len;
+		}
+		construct(lenCount,lenSymbol,lengths,0,nlen);
+		construct(distCount,distSymbol,lengths,nlen,ndist);
+		codes();
+	}
+}
@@ -0,0 +1,127 @@
+import javax.microedition.lcdui.Display;
+
+/**
+ * Asks the dictionaries for the headwords starting with what has been typed
+ * on a thread of its own, so that typing never waits for index pages to be
+ * read. Only the latest request matters: one that comes in while another
+ * runs replaces it, and the answer to one that has been replaced is dropped.
+ * Answers reach the listener on the event thread.
+ */
+public class CompletionWorker implements Runnable
+{
+	public interface Listener
+	{
+		/**
+		 * @param words headwords starting with prefix past after, in key
+		 * order, empty if there are none.
+		 */
+		void completeDone(String prefix,String after,String[] words);
+
+		void completeFailed(String prefix,Exception e);
+	}
+
+	private final Display display;
+	private final DictionarySet dict;
+	private final Listener listener;
+	// the request to run next, prefix null when there is none
+	private String prefix,after;
+	private int rows;
+	// counts requests, an answer is only delivered if no newer one came in
+	private int generation;
+	private boolean stopped;
+
+	public CompletionWorker(Display display,DictionarySet dict,Listener listener)
+	{
+		this.display=display;
+		this.dict=dict;
+		this.listener=listener;
+		new Thread(this).start();
+	}
+
+	/**
+	 * Asks for up to rows headwords starting with prefix past after,
+	 * dropping any request that has not been answered yet.
+	 */
+	public synchronized void complete(String prefix,String after,int rows)
+	{
+		this.prefix=prefix;
+		this.after=after;
+		this.rows=rows;
+		generation++;
+		notify();
+	}
+
+	/**
+	 * Drops the request in progress, if any, without starting another.
+	 */
+	public synchronized void cancel()
+	{
+		prefix=null;
+		generation++;
+	}
+
+	public synchronized void stop()
+	{
+		stopped=true;
+		cancel();
+		notify();
+	}
+
+	private synchronized boolean isCurrent(int request)
+	{
+		return request==generation&&!stopped;
+	}
+
+	public void run()
+	{
+		while(true)
+		{
+			final String prefix,after;
+			final int request;
+			String[] words;
+			synchronized(this)
+			{
+				while(this.prefix==null&&!stopped)
+				{
+					try
+					{
+						wait();
+					} catch(InterruptedException e)
+					{
+					}
+				}
+				if(stopped) return;
+				prefix=this.prefix;
+				after=this.after;
+				words=new String[rows];
+				request=generation;
+				this.prefix=null;
+			}
+			Runnable answer;
+			try
+			{
+				int n=dict.complete(prefix,after,words);
+				final String[] found=new String[n];
+				System.arraycopy(words,0,found,0,n);
+				answer=new Runnable()
+				{
+					public void run()
+					{
+						if(isCurrent(request)) listener.completeDone(prefix,after,found);
+					}
+				};
+			} catch(final Exception e)
+			{
+				answer=new Runnable()
+				{
+					public void run()
+					{
+						if(isCurrent(request)) listener.completeFailed(prefix,e);
+					}
+				};
+			}
+			// checked again on the event thread, where a newer request may have come in meanwhile
+			if(isCurrent(request)) display.callSerially(answer);
+		}
+	}
+}
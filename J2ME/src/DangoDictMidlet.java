@@ -3,37 +3,52 @@ import gr.fire.browser.Browser;
 import gr.fire.browser.util.Page;
 import gr.fire.core.CommandListener;
 import gr.fire.core.Component;
+import gr.fire.core.Container;
 import gr.fire.core.FireScreen;
 import gr.fire.core.Panel;
 import gr.fire.ui.FireTheme;
 import gr.fire.util.Log;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 
 import java.io.IOException;
+import java.util.Vector;
 
 import javax.microedition.io.HttpConnection;
 import javax.microedition.lcdui.Alert;
 import javax.microedition.lcdui.AlertType;
 import javax.microedition.lcdui.Command;
-import javax.microedition.lcdui.TextBox;
 import javax.microedition.lcdui.Display;
 import javax.microedition.lcdui.Displayable;
 import javax.microedition.lcdui.Form;
+import javax.microedition.lcdui.Gauge;
+import javax.microedition.lcdui.Item;
+import javax.microedition.lcdui.ItemCommandListener;
+import javax.microedition.lcdui.ItemStateListener;
+import javax.microedition.lcdui.List;
 import javax.microedition.lcdui.TextField;
 import javax.microedition.midlet.MIDlet;
 import javax.microedition.midlet.MIDletStateChangeException;
 
-public class DangoDictMidlet extends MIDlet implements CommandListener
+public class DangoDictMidlet extends MIDlet implements CommandListener,LookupWorker.Listener,CompletionWorker.Listener,ItemStateListener,ItemCommandListener
 {
-	private Command exit,cha,chaok,back;
+	// rows of suggestions under the input
+	private static final int SUGGESTIONS=8;
+	// milliseconds before a lookup shows the loading screen
+	private static final int LOADING_DELAY=300;
+	// milliseconds to wait for a dictionary unless the jad says otherwise
+	private static final int DICTIONARY_TIMEOUT=3000;
+	private Command exit,cha,chaok,back,cancel,pick,reverse;
 	private Browser b;
         private Form f1;
-        private TextBox tb;
+        private Form search;
+        private TextField input;
+        private SuggestionList suggestions;
         private FireScreen screen;
-        private String dictName;
-        private String[] startWord;
-        private int defTotal,pages;
+        private DictionarySet dict;
+        private LookupWorker worker;
+        private CompletionWorker completer;
+        private Form loading;
+        private List similar;
+        private List found;
         private Panel panel=null;
 	public DangoDictMidlet()
 	{
@@ -54,6 +69,11 @@ public class DangoDictMidlet extends MIDlet implements CommandListener
                 cha=new Command("Search",Command.OK,1);
                 f1=new Form("Loading");
                 f1.append("Initializing dictionary data...");
+                cancel=new Command("Cancel",Command.CANCEL,1);
+                loading=new Form("Loading");
+                loading.append(new Gauge(null,false,Gauge.INDEFINITE,Gauge.CONTINUOUS_RUNNING));
+                loading.addCommand(cancel);
+                loading.setCommandListener(this);
 		try
 		{
 			// use the browser to load a page from the jar
@@ -66,26 +86,18 @@ public class DangoDictMidlet extends MIDlet implements CommandListener
 			panel.setDragScroll(true); // This enables the Drag scroll function for this Panel.
 			panel.setLabel(p.getPageTitle()); // The html page has a title tag, display it as a label on the panel
 			screen.setCurrent(f1);
-			DataInputStream dis=new DataInputStream(this.getClass().getResourceAsStream("/1.dd0"));
-			dis.skip(4);
-			defTotal=dis.readInt();
-			dictName=dis.readUTF();
-			dis.close();
-			dis=new DataInputStream(this.getClass().getResourceAsStream("/1.ddp"));
-			pages=dis.readInt();
-			startWord=new String[pages+1];
-			dis.close();
-			panel.setLabel(dictName+"("+defTotal+"Words)");
-			for(int i=0;i<=pages;i++){
-				dis=new DataInputStream(this.getClass().getResourceAsStream("/1.dd"+i));
-				if(i==0){
-					dis.skip(8);
-					dis.readUTF();
-				}
-				dis.skip(6);
-				startWord[i]=dis.readUTF();
-				dis.close();
-			}
+			// the jad may list the packs in the jar, the first asked first, and
+			// set how many bytes of decoded index pages to keep in all
+			String cacheSize=getAppProperty("DangoDict-Page-Cache");
+			String timeout=getAppProperty("DangoDict-Timeout");
+			dict=openDictionaries(getAppProperty("DangoDict-Dictionaries"),
+					cacheSize==null?64*1024:Integer.parseInt(cacheSize.trim()),
+					timeout==null?DICTIONARY_TIMEOUT:Integer.parseInt(timeout.trim()));
+			cacheSize=getAppProperty("DangoDict-Render-Cache");
+			LruCache renderCache=new LruCache(cacheSize==null?256*1024:Integer.parseInt(cacheSize.trim()));
+			worker=new LookupWorker(Display.getDisplay(this),dict,b,renderCache,this,LOADING_DELAY);
+			completer=new CompletionWorker(Display.getDisplay(this),dict,this);
+			panel.setLabel(dict.getName()+"("+dict.getWordCount()+"Words)");
 		} catch (Exception e)
 		{
 			// Use the Log class of the fire utility classes to easily log errors.
@@ -96,8 +108,34 @@ public class DangoDictMidlet extends MIDlet implements CommandListener
 		screen.setCurrent(panel); // show the panel on the screen.
 	}
 
+	/**
+	 * @param packs archive names separated by spaces or commas, null for just
+	 * the first pack.
+	 */
+	private static DictionarySet openDictionaries(String packs,int pageCacheSize,int timeout) throws IOException
+	{
+		Vector names=new Vector();
+		if(packs!=null)
+		{
+			int start=0;
+			for(int i=0;i<=packs.length();i++)
+			{
+				if(i<packs.length()&&packs.charAt(i)!=' '&&packs.charAt(i)!=',') continue;
+				if(i>start) names.addElement(packs.substring(start,i));
+				start=i+1;
+			}
+		}
+		if(names.isEmpty()) names.addElement("1");
+		Dictionary[] dicts=new Dictionary[names.size()];
+		for(int i=0;i<dicts.length;i++) dicts[i]=new Dictionary((String)names.elementAt(i),pageCacheSize/dicts.length);
+		return new DictionarySet(dicts,timeout);
+	}
+
 	protected void destroyApp(boolean arg0) throws MIDletStateChangeException
 	{
+		if(worker!=null) worker.stop();
+		if(completer!=null) completer.stop();
+		if(dict!=null) dict.stop();
 		FireScreen.getScreen().destroy();
 	}
 
@@ -113,88 +151,126 @@ public class DangoDictMidlet extends MIDlet implements CommandListener
 	public void commandAction(javax.microedition.lcdui.Command c, Displayable cmp){
 		System.out.println(c.getLabel());
 		if(c==chaok){
-			if(tb.getString()==null||tb.getString()=="")return;
-			int i,s1,s2,s4,lob;
-			byte[] def,ob=new byte[10000];
-			String s3,ts=tb.getString().toLowerCase();
-			for(i=0;i<=pages;i++){
-				if(ts.compareTo(startWord[i])<0)break;
-			}
-			i--;
-			if(i!=-1){
-				DataInputStream dis=new DataInputStream(this.getClass().getResourceAsStream("/1.dd"+i));
-				try{
-					if(i==0){
-						dis.skip(8);
-						dis.readUTF();
-					}
-				}catch(Exception e){
-
-				}
-				try{
-					while(true){
-					   s1=(int)dis.readShort();
-					   s2=(int)dis.readShort();
-					   s4=(int)dis.readShort();
-					   s3=dis.readUTF().toLowerCase();
-					   i=ts.compareTo(s3);
-					   if(i<0){
-						   notFound();
-						   return;
-					   }
-					   if(i==0){
-						   dis.close();
-						   dis=new DataInputStream(this.getClass().getResourceAsStream("/"+s1+".ddf"));
-						   dis.skip(s2);
-						   def=new byte[s4];
-						   dis.read(def, 0, s4);
-						   ByteArrayInputStream bais=new ByteArrayInputStream(def,0,s4);
-						   /*InflaterInputStream iis=new InflaterInputStream(bais,s4,false);
-						   lob=iis.read(ob);
-						   iis.close();
-						   bais.close();
-						   iis=null;
-						   bais=null;*/
-						   //String fs=new String(def,0,s4,"UTF-8");
-						   //System.out.println(fs);
-						   Page p = b.loadPage(bais,"UTF-8");
-							panel.set(p.getPageContainer());
-	//panel.setLabel(p.getPageTitle()); // The html page has a title tag, display it as a label on the panel
-							screen.setCurrent(panel);
-						   return;
-					   }
-					}
-				}catch(Exception e){
-					System.out.println(e);
-				}
-				try{
-				dis.close();
-				}catch(Exception e){
-				}
-				notFound();
-				return;
-			}
-			notFound();
-			return;
+			if(input.getString()==null||input.getString().length()==0)return;
+			// the worker posts the result, the event thread is free meanwhile
+			String word=input.getString();
+			if(word.indexOf('*')>=0||word.indexOf('?')>=0) worker.match(word);
+			else worker.lookup(word);
+		}
+		if(c==cancel){
+			worker.cancel();
+			screen.setCurrent(search);
+		}
+		if(c==reverse){
+			if(input.getString()==null||input.getString().length()==0)return;
+			worker.search(input.getString());
 		}
+		if(cmp==similar){
+			if(c==List.SELECT_COMMAND) worker.lookup(similar.getString(similar.getSelectedIndex()));
+			else screen.setCurrent(search);
+		}
+		if(cmp==found){
+			if(c==List.SELECT_COMMAND) worker.lookup(found.getString(found.getSelectedIndex()));
+			else screen.setCurrent(search);
+		}
+	}
+
+	public void commandAction(Command c,Item item)
+	{
+		if(c==pick&&suggestions.getSelected()!=null) worker.lookup(suggestions.getSelected());
+	}
+
+	public void itemStateChanged(Item item)
+	{
+		if(item!=input) return;
+		// every key typed narrows the suggestions, found off the event thread
+		suggestions.setPrefix(input.getString());
 	}
 	public void commandAction(javax.microedition.lcdui.Command c, Component cmp)
 	{
 		if(c==exit)
 		{
+			if(worker!=null) worker.stop();
+			if(completer!=null) completer.stop();
+			if(dict!=null) dict.stop();
 			notifyDestroyed();
 			return;
 		}
 		if(c==cha){
 			chaok=new Command("OK",Command.OK,1);
 			back=new Command("Back",Command.BACK,99);
-			tb=new TextBox("Input a word","",50,TextField.ANY);
-			tb.setCommandListener(this);
-			tb.addCommand(chaok);
-			tb.addCommand(back);
-			screen.setCurrent(tb);
+			pick=new Command("Look up",Command.ITEM,1);
+			reverse=new Command("In definitions",Command.SCREEN,2);
+			search=new Form("Input a word");
+			input=new TextField(null,"",50,TextField.ANY);
+			suggestions=new SuggestionList(Display.getDisplay(this),completer,SUGGESTIONS,pick);
+			suggestions.setItemCommandListener(this);
+			search.append(input);
+			search.append(suggestions);
+			search.setItemStateListener(this);
+			search.setCommandListener(this);
+			search.addCommand(chaok);
+			search.addCommand(back);
+			search.addCommand(reverse);
+			screen.setCurrent(search);
 		}
 	}
+	public void lookupSlow(String word)
+	{
+		loading.setTitle("Looking up "+word);
+		screen.setCurrent(loading);
+	}
+
+	public void lookupDone(String word,Container page)
+	{
+		panel.set(page);
+		//panel.setLabel(p.getPageTitle()); // The html page has a title tag, display it as a label on the panel
+		screen.setCurrent(panel);
+	}
+
+	public void lookupNotFound(String word,String[] similar)
+	{
+		if(similar.length==0)
+		{
+			notFound();
+			return;
+		}
+		// offer the headwords closest to what was typed
+		this.similar=new List("Did you mean",List.IMPLICIT,similar,null);
+		this.similar.addCommand(back);
+		this.similar.setCommandListener(this);
+		screen.setCurrent(this.similar);
+	}
+
+	public void lookupFailed(String word,Exception e)
+	{
+		screen.setCurrent(new Alert("Error","Could not read the dictionary.",null,AlertType.ERROR));
+	}
+
+	public void completeDone(String prefix,String after,String[] words)
+	{
+		suggestions.completeDone(prefix,after,words);
+	}
+
+	public void completeFailed(String prefix,Exception e)
+	{
+		suggestions.completeFailed(prefix);
+		screen.setCurrent(new Alert("Error","Could not read the suggestions.",null,AlertType.ERROR));
+	}
+
+	public void searchDone(String query,String[] words)
+	{
+		if(words.length==0)
+		{
+			screen.setCurrent(new Alert("Error","No definition contains these words.",null,AlertType.ERROR));
+			return;
+		}
+		found=new List(query,List.IMPLICIT,words,null);
+		found.addCommand(back);
+		found.setCommandListener(this);
+		screen.setCurrent(found);
+	}
+
         private void notFound(){
             screen.setCurrent(new Alert("Error","This word does not exist.",null,AlertType.ERROR));
         }
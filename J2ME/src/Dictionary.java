@@ -0,0 +1,1004 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Lookups in the dictionary packed into the jar by LingoesLd2Reader.
+ *
+ * Everything is in a single archive, /1.dda for the first pack and /2.dda,
+ * /3.dda ... for the others of a DictionarySet, which the jar stores without
+ * compression so that it can be read at any offset. It starts with "DDIC",
+ * the version byte and the int offset and length of the directory at its
+ * end. The directory holds the int word count, UTF name, the offset and
+ * length of the preset dictionary, the offset of the first definition block
+ * and the int page count, then the int offset, length and CRC32 and the first
+ * key of every page, the int section count with the four letter tag and int
+ * offset and length of every section, and the CRC32 of the directory itself.
+ * The sections read are "BLOM", a Bloom filter over the keys that answers
+ * most misses before any page is read, "FUZZ", the symmetric delete index
+ * behind fuzzy(), "TEXT", the inverted index over the definitions behind
+ * search(), "RECN", the first record number of every page, which both
+ * indexes need to find the headwords they point at, and "FSTF" and "FSTR",
+ * the automata over the keys and the reversed keys behind match(). All but
+ * the Bloom filter are loaded the first time they are needed.
+ *
+ * Each page is a run of front coded records (varint length of the prefix
+ * shared with the previous key, varint length of the rest, the rest of the
+ * key, then varints for the block offset and block length, and the offset and
+ * length of the definition in the inflated block). Every few records the key
+ * is stored in full; the page ends with an int table of these restart offsets
+ * and their count. Pages are decoded whole into IndexPage and the recently
+ * used ones are kept in an LruCache, so lookups near the last few cost no
+ * reading.
+ *
+ * The UTF-8 html definitions are grouped into blocks of a few KB, each raw
+ * deflated against the preset dictionary and followed by its CRC32. The last
+ * few inflated blocks are kept, since neighbouring words usually share a
+ * block.
+ *
+ * Packs made before the archive are still read: /1.ddp is then just the int
+ * number of the last page, /1.dd0 starts with "DDIC", the word count and the
+ * name, and the pages /1.dd0 ... /1.ddN hold records of short file, short
+ * offset, short length and the UTF word, pointing at plain html in /1.ddf,
+ * /2.ddf, ... Since the definition files are numbered from 1 whatever the
+ * pack, only one such pack fits in a jar.
+ */
+public class Dictionary
+{
+	private static final int VERSION=5;
+	private static int[] crcTable;
+
+	private String name;
+	private int defTotal,pages;
+	private int[] pageOffset,pageLength,pageCrc;
+	private int blocksOffset;
+	private final String pack;
+	private final ArchiveReader archive;
+	private byte[] bloom;
+	private int bloomHashes;
+	private int recordsOffset=-1,fuzzyOffset=-1,textOffset=-1;
+	// the first record number of every page
+	private int[] pageFirst;
+	// loaded by fuzzy(): the bucket offsets and where the buckets start
+	private int[] fuzzyBuckets;
+	private int fuzzyPrefix,fuzzyBits,fuzzyEntries;
+	// loaded by search(): the first term and offset of every group of terms,
+	// where the groups and the posting lists start
+	private byte[][] textKey;
+	private int[] textGroup;
+	private int textGroups,textPostings;
+	private int keysOffset=-1,reversedKeysOffset=-1,keysLength,reversedKeysLength;
+	private KeyAutomaton keys,reversedKeys;
+	private byte[][] startKey;
+	// only set for packs before the archive
+	private String[] startWord;
+	private byte[] presetDictionary;
+	private final BlockInflater inflater=new BlockInflater();
+	// most recently used first
+	private final int[] cachedBlock=new int[4];
+	private final byte[][] cachedData=new byte[4][];
+	private final LruCache pageCache;
+
+	public Dictionary() throws IOException
+	{
+		this("1",64*1024);
+	}
+
+	/**
+	 * @param pack the name of the archive in the jar without its extension,
+	 * "1" for /1.dda.
+	 * @param pageCacheSize bytes of heap decoded index pages may take.
+	 */
+	public Dictionary(String pack,int pageCacheSize) throws IOException
+	{
+		this.pack=pack;
+		archive=new ArchiveReader("/"+pack+".dda");
+		pageCache=new LruCache(pageCacheSize);
+		if(!archive.exists())
+		{
+			DataInputStream dis=new DataInputStream(open("/"+pack+".ddp"));
+			try
+			{
+				openLegacy(dis.readInt()+1);
+			} finally
+			{
+				dis.close();
+			}
+			return;
+		}
+		byte[] header=archive.read(0,13);
+		if(!"DDIC".equals(new String(header,0,4))) throw new IOException("Not a dictionary archive");
+		if(header[4]!=VERSION) throw new IOException("Unsupported dictionary version "+header[4]);
+		int length=readInt(header,9);
+		byte[] directory=archive.read(readInt(header,5),length);
+		if(crc32(directory,0,length-4)!=readInt(directory,length-4)) throw new IOException("Corrupt dictionary directory");
+		DataInputStream dis=new DataInputStream(new ByteArrayInputStream(directory,0,length-4));
+		defTotal=dis.readInt();
+		name=dis.readUTF();
+		int dictionaryOffset=dis.readInt();
+		presetDictionary=new byte[dis.readInt()];
+		blocksOffset=dis.readInt();
+		pages=dis.readInt();
+		pageOffset=new int[pages];
+		pageLength=new int[pages];
+		pageCrc=new int[pages];
+		startKey=new byte[pages][];
+		for(int i=0;i<pages;i++)
+		{
+			pageOffset[i]=dis.readInt();
+			pageLength[i]=dis.readInt();
+			pageCrc[i]=dis.readInt();
+			startKey[i]=new byte[dis.readUnsignedShort()];
+			dis.readFully(startKey[i]);
+		}
+		for(int i=dis.readInt();i>0;i--)
+		{
+			byte[] tag=new byte[4];
+			dis.readFully(tag);
+			int offset=dis.readInt(),size=dis.readInt();
+			if("BLOM".equals(new String(tag)))
+			{
+				bloom=archive.read(offset+4,size-4);
+				bloomHashes=readInt(archive.read(offset,4),0);
+			}
+			else if("RECN".equals(new String(tag))) recordsOffset=offset;
+			else if("FUZZ".equals(new String(tag))) fuzzyOffset=offset;
+			else if("TEXT".equals(new String(tag))) textOffset=offset;
+			else if("FSTF".equals(new String(tag)))
+			{
+				keysOffset=offset;
+				keysLength=size;
+			}
+			else if("FSTR".equals(new String(tag)))
+			{
+				reversedKeysOffset=offset;
+				reversedKeysLength=size;
+			}
+		}
+		archive.read(dictionaryOffset,presetDictionary,0,presetDictionary.length);
+	}
+
+	private void openLegacy(int pages) throws IOException
+	{
+		this.pages=pages;
+		startWord=new String[pages];
+		for(int i=0;i<pages;i++)
+		{
+			DataInputStream dis=new DataInputStream(open("/"+pack+".dd"+i));
+			try
+			{
+				if(i==0)
+				{
+					dis.readInt();
+					defTotal=dis.readInt();
+					name=dis.readUTF();
+				}
+				dis.readShort();
+				dis.readShort();
+				dis.readShort();
+				startWord[i]=dis.readUTF().toLowerCase();
+			} finally
+			{
+				dis.close();
+			}
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the name of the archive this dictionary is read from.
+	 */
+	public String getPack()
+	{
+		return pack;
+	}
+
+	public int getWordCount()
+	{
+		return defTotal;
+	}
+
+	/**
+	 * @return the cache of decoded index pages, keyed by page number.
+	 */
+	public LruCache getPageCache()
+	{
+		return pageCache;
+	}
+
+	/**
+	 * @param word the word to look up, case does not matter.
+	 * @return the UTF-8 html definition of word or null if there is none.
+	 */
+	public byte[] lookup(String word) throws IOException
+	{
+		long entry=find(word);
+		return entry<0?null:getDefinition(entry);
+	}
+
+	/**
+	 * @param word the word to look up, case does not matter.
+	 * @return a number standing for the entry of word in this dictionary, to
+	 * pass to getDefinition(), or -1 if there is none.
+	 */
+	public long find(String word) throws IOException
+	{
+		if(startWord!=null) return findLegacy(word.toLowerCase());
+		byte[] key=sortKey(word);
+		if(bloom!=null&&!mightContain(key)) return -1;
+		int p=findPage(key);
+		if(p<0) return -1;
+		int i=getPage(p).find(key);
+		return i<0?-1:((long)p<<32)|i;
+	}
+
+	/**
+	 * Headwords starting with prefix, in dictionary order, folded to lower
+	 * case like the keys they are stored as. Call again with the last word
+	 * found as after for the next ones.
+	 *
+	 * @param after only words past this one, null to start with the first.
+	 * @param words filled with up to words.length headwords.
+	 * @return how many headwords were put in words.
+	 */
+	public int complete(String prefix,String after,String[] words) throws IOException
+	{
+		if(startWord!=null) return completeLegacy(prefix.toLowerCase(),after==null?null:after.toLowerCase(),words);
+		byte[] key=sortKey(prefix);
+		// the last key added, to skip after and repeated headwords
+		byte[] last=after==null?null:sortKey(after);
+		// an after sorting before prefix does not move the start
+		byte[] from=last!=null&&compareKeys(last,key,0,key.length)>0?last:key;
+		int n=0;
+		for(int p=Math.max(findPage(from),0);p<pages&&n<words.length;p++)
+		{
+			IndexPage page=getPage(p);
+			for(int i=page.lowerBound(from);i<page.size()&&n<words.length;i++)
+			{
+				if(!page.startsWith(i,key)) return n;
+				if(last!=null&&page.compare(last,i)>=0) continue;
+				last=page.getKey(i);
+				words[n++]=new String(last,0,last.length,"UTF-8");
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Headwords close to a word that is not in the dictionary, for a "did you
+	 * mean" list. Candidates come from the symmetric delete index the
+	 * converter wrote over the first few letters of every headword; each one
+	 * is then checked against the whole word, counting an insertion, deletion,
+	 * substitution or swap of neighbouring letters as one edit.
+	 *
+	 * @param maxDistance edits allowed, the index only promises to find all
+	 * headwords up to one more than the converter built it for.
+	 * @param words filled with up to words.length headwords, each once, the
+	 * closest first and otherwise in dictionary order.
+	 * @return how many headwords were put in words, 0 for packs without the
+	 * index.
+	 */
+	public int fuzzy(String word,int maxDistance,String[] words) throws IOException
+	{
+		if(fuzzyOffset<0||recordsOffset<0||words.length==0) return 0;
+		loadFuzzy();
+		word=fold(word);
+		String prefix=word.length()>fuzzyPrefix?word.substring(0,fuzzyPrefix):word;
+		Hashtable deletes=new Hashtable();
+		deletes.put(prefix,prefix);
+		addDeletes(prefix,maxDistance,deletes);
+		// flipped sign bits so that sorting visits buckets in archive order
+		int[] hashes=new int[deletes.size()];
+		int n=0;
+		for(Enumeration e=deletes.keys();e.hasMoreElements();) hashes[n++]=hash((String)e.nextElement())^0x80000000;
+		sort(hashes);
+		int[] distances=new int[words.length];
+		int[] records=new int[words.length];
+		int found=0;
+		// records and headwords looked at, a headword with several entries
+		// is offered once
+		Hashtable seen=new Hashtable(),seenWords=new Hashtable();
+		int[] value=new int[1];
+		for(int h=0;h<hashes.length;)
+		{
+			int bucket=fuzzyBits==0?0:(hashes[h]^0x80000000)>>>(32-fuzzyBits);
+			int end=h+1;
+			while(end<hashes.length&&(fuzzyBits==0?0:(hashes[end]^0x80000000)>>>(32-fuzzyBits))==bucket) end++;
+			byte[] b=archive.read(fuzzyEntries+fuzzyBuckets[bucket],fuzzyBuckets[bucket+1]-fuzzyBuckets[bucket]);
+			for(int off=0;off<b.length;)
+			{
+				int hash=IndexPage.readInt(b,off)^0x80000000;
+				off=IndexPage.readVarInt(b,off+4,value,0);
+				int count=value[0];
+				boolean match=false;
+				for(int i=h;i<end;i++) if(hashes[i]==hash) match=true;
+				int record=0;
+				for(int i=0;i<count;i++)
+				{
+					off=IndexPage.readVarInt(b,off,value,0);
+					record+=value[0];
+					if(!match) continue;
+					Integer key=new Integer(record);
+					if(seen.containsKey(key)) continue;
+					seen.put(key,key);
+					String candidate=getRecordWord(record);
+					if(seenWords.containsKey(candidate)) continue;
+					seenWords.put(candidate,candidate);
+					int d=distance(word,candidate,maxDistance);
+					if(d>maxDistance) continue;
+					// insert by distance then record, dropping the last if full
+					int at=found;
+					while(at>0&&(distances[at-1]>d||distances[at-1]==d&&records[at-1]>record)) at--;
+					if(at==words.length) continue;
+					int move=Math.min(found,words.length-1)-at;
+					System.arraycopy(distances,at,distances,at+1,move);
+					System.arraycopy(records,at,records,at+1,move);
+					System.arraycopy(words,at,words,at+1,move);
+					distances[at]=d;
+					records[at]=record;
+					words[at]=candidate;
+					if(found<words.length) found++;
+				}
+			}
+			h=end;
+		}
+		return found;
+	}
+
+	private synchronized void loadFuzzy() throws IOException
+	{
+		if(fuzzyBuckets!=null) return;
+		byte[] b=archive.read(fuzzyOffset,12);
+		fuzzyPrefix=readInt(b,4);
+		fuzzyBits=readInt(b,8);
+		int count=(1<<fuzzyBits)+1;
+		b=archive.read(fuzzyOffset+12,count*4);
+		int[] buckets=new int[count];
+		for(int i=0;i<count;i++) buckets[i]=readInt(b,i*4);
+		fuzzyEntries=fuzzyOffset+12+count*4;
+		fuzzyBuckets=buckets;
+	}
+
+	/**
+	 * Headwords matching a pattern where ? stands for any one character and *
+	 * for any number of them, say "col?r" or "*tion". Patterns ending in more
+	 * letters than they start with are matched against the reversed keys, so
+	 * both prefixes and suffixes only walk the keys that share them; only a
+	 * pattern that neither starts nor ends with letters, like "*ment*", walks
+	 * them all.
+	 *
+	 * @param words filled with up to words.length headwords, folded to lower
+	 * case like the keys, in dictionary order or, for a search by the end, in
+	 * the order of their reversed spelling.
+	 * @return how many headwords were put in words, 0 for packs without the
+	 * automata.
+	 */
+	public int match(String pattern,String[] words) throws IOException
+	{
+		pattern=fold(pattern);
+		int prefix=0,suffix=0;
+		while(prefix<pattern.length()&&!isWildcard(pattern.charAt(prefix))) prefix++;
+		while(suffix<pattern.length()&&!isWildcard(pattern.charAt(pattern.length()-1-suffix))) suffix++;
+		if(suffix>prefix&&reversedKeysOffset>=0)
+		{
+			KeyAutomaton automaton=loadKeys(true);
+			return automaton.match(new StringBuffer(pattern).reverse().toString(),true,words);
+		}
+		if(keysOffset<0) return 0;
+		return loadKeys(false).match(pattern,false,words);
+	}
+
+	private static boolean isWildcard(char c)
+	{
+		return c=='*'||c=='?';
+	}
+
+	private synchronized KeyAutomaton loadKeys(boolean reversed) throws IOException
+	{
+		if(reversed)
+		{
+			if(reversedKeys==null) reversedKeys=new KeyAutomaton(archive.read(reversedKeysOffset,reversedKeysLength));
+			return reversedKeys;
+		}
+		if(keys==null) keys=new KeyAutomaton(archive.read(keysOffset,keysLength));
+		return keys;
+	}
+
+	/**
+	 * Headwords whose definitions contain the words of query, for searching
+	 * the other way round. The query is split into terms as the converter
+	 * split the definitions: runs of letters and digits of two or more, and
+	 * every two neighbouring CJK characters. Only the posting lists of these
+	 * terms are read, so the cost grows with how common they are rather than
+	 * with the size of the dictionary.
+	 *
+	 * @param all true for headwords whose definitions contain all the terms,
+	 * false for any of them.
+	 * @param words filled with up to words.length headwords, each once, those
+	 * matching more and rarer terms first and otherwise in dictionary order.
+	 * @return how many headwords were put in words, 0 for packs without the
+	 * index.
+	 */
+	public int search(String query,boolean all,String[] words) throws IOException
+	{
+		if(textOffset<0||recordsOffset<0||words.length==0) return 0;
+		loadText();
+		String[] terms=terms(fold(query));
+		int[][] lists=new int[terms.length][];
+		int[] weights=new int[terms.length];
+		int found=0;
+		for(int i=0;i<terms.length;i++)
+		{
+			lists[found]=readPostings(sortKey(terms[i]));
+			if(lists[found]==null)
+			{
+				if(all) return 0;
+				continue;
+			}
+			// rarer terms count for more
+			weights[found]=defTotal/Math.max(1,lists[found].length)+1;
+			found++;
+		}
+		if(found==0) return 0;
+		for(int capacity=words.length;;capacity*=2)
+		{
+			int[] records=new int[capacity];
+			int n=rank(lists,weights,found,all,records);
+			// a headword with several entries is offered once
+			Hashtable seen=new Hashtable();
+			int count=0;
+			for(int i=0;i<n&&count<words.length;i++)
+			{
+				String word=getRecordWord(records[i]);
+				if(seen.containsKey(word)) continue;
+				seen.put(word,word);
+				words[count++]=word;
+			}
+			// short only for repeated headwords while more records matched
+			if(count==words.length||n<capacity) return count;
+		}
+	}
+
+	/**
+	 * Merges the first found posting lists, each sorted by record.
+	 *
+	 * @param records filled with the best scoring records, in order of
+	 * score and then of record.
+	 * @return how many records were put in records.
+	 */
+	private static int rank(int[][] lists,int[] weights,int found,boolean all,int[] records)
+	{
+		int[] next=new int[found];
+		int[] scores=new int[records.length];
+		int n=0;
+		while(true)
+		{
+			int record=Integer.MAX_VALUE;
+			for(int i=0;i<found;i++) if(next[i]<lists[i].length&&lists[i][next[i]]<record) record=lists[i][next[i]];
+			if(record==Integer.MAX_VALUE) break;
+			int matched=0,score=0;
+			for(int i=0;i<found;i++)
+			{
+				if(next[i]<lists[i].length&&lists[i][next[i]]==record)
+				{
+					next[i]++;
+					matched++;
+					score+=weights[i];
+				}
+			}
+			if(all&&matched<found) continue;
+			// insert by score then record, dropping the last if full
+			int at=n;
+			while(at>0&&scores[at-1]<score) at--;
+			if(at==records.length) continue;
+			int move=Math.min(n,records.length-1)-at;
+			System.arraycopy(scores,at,scores,at+1,move);
+			System.arraycopy(records,at,records,at+1,move);
+			scores[at]=score;
+			records[at]=record;
+			if(n<records.length) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the record numbers of the definitions containing the term key,
+	 * null if there are none.
+	 */
+	private int[] readPostings(byte[] key) throws IOException
+	{
+		int lo=0,hi=textKey.length-1;
+		while(lo<=hi)
+		{
+			int mid=(lo+hi)>>>1;
+			if(compareKeys(key,textKey[mid],0,textKey[mid].length)<0) hi=mid-1;
+			else lo=mid+1;
+		}
+		if(hi<0) return null;
+		byte[] b=archive.read(textGroups+textGroup[hi],textGroup[hi+1]-textGroup[hi]);
+		byte[] term=new byte[0];
+		int[] value=new int[3];
+		for(int off=0;off<b.length;)
+		{
+			off=IndexPage.readVarInt(b,off,value,0);
+			off=IndexPage.readVarInt(b,off,value,1);
+			byte[] t=new byte[value[0]+value[1]];
+			System.arraycopy(term,0,t,0,value[0]);
+			System.arraycopy(b,off,t,value[0],value[1]);
+			term=t;
+			off+=value[1];
+			off=IndexPage.readVarInt(b,off,value,0);
+			off=IndexPage.readVarInt(b,off,value,1);
+			off=IndexPage.readVarInt(b,off,value,2);
+			int c=compareKeys(key,term,0,term.length);
+			if(c<0) return null;
+			if(c>0) continue;
+			int[] list=new int[value[0]];
+			byte[] postings=archive.read(textPostings+value[1],value[2]);
+			int record=0;
+			for(int i=0,p=0;i<list.length;i++)
+			{
+				p=IndexPage.readVarInt(postings,p,value,0);
+				record+=value[0];
+				list[i]=record;
+			}
+			return list;
+		}
+		return null;
+	}
+
+	private synchronized void loadText() throws IOException
+	{
+		if(textKey!=null) return;
+		byte[] b=archive.read(textOffset,16);
+		int groups=readInt(b,4),length=readInt(b,8);
+		int groupsLength=readInt(b,12);
+		b=archive.read(textOffset+16,length);
+		byte[][] keys=new byte[groups][];
+		int[] offsets=new int[groups+1];
+		for(int i=0,off=0;i<groups;i++)
+		{
+			offsets[i]=readInt(b,off);
+			keys[i]=new byte[((b[off+4]&0xff)<<8)|(b[off+5]&0xff)];
+			System.arraycopy(b,off+6,keys[i],0,keys[i].length);
+			off+=6+keys[i].length;
+		}
+		offsets[groups]=groupsLength;
+		textGroups=textOffset+16+length;
+		textPostings=textGroups+groupsLength;
+		textGroup=offsets;
+		textKey=keys;
+	}
+
+	/**
+	 * Splits text into the terms TextIndex in the converter files definitions
+	 * under.
+	 */
+	static String[] terms(String text)
+	{
+		Hashtable terms=new Hashtable();
+		int n=text.length();
+		for(int i=0;i<n;)
+		{
+			char c=text.charAt(i);
+			int start=i;
+			if(isCjk(c))
+			{
+				while(i<n&&isCjk(text.charAt(i))) i++;
+				if(i-start==1) terms.put(text.substring(start,i),"");
+				for(int j=start;j+1<i;j++) terms.put(text.substring(j,j+2),"");
+			}
+			else if(isLetterOrDigit(c))
+			{
+				while(i<n&&isLetterOrDigit(text.charAt(i))) i++;
+				if(i-start>=2&&i-start<=64) terms.put(text.substring(start,i),"");
+			}
+			else i++;
+		}
+		String[] result=new String[terms.size()];
+		int i=0;
+		for(Enumeration e=terms.keys();e.hasMoreElements();) result[i++]=(String)e.nextElement();
+		return result;
+	}
+
+	private static boolean isCjk(char c)
+	{
+		return c>=0x3040&&c<=0x30ff||c>=0x3400&&c<=0x4dbf||c>=0x4e00&&c<=0x9fff||c>=0xac00&&c<=0xd7af||c>=0xf900&&c<=0xfaff;
+	}
+
+	private static boolean isLetterOrDigit(char c)
+	{
+		return c>='0'&&c<='9'||c>='a'&&c<='z'||c>='A'&&c<='Z'||c>=0xc0&&c<=0x24f&&c!=0xd7&&c!=0xf7||c>=0x370&&c<=0x52f;
+	}
+
+	private synchronized void loadRecords() throws IOException
+	{
+		if(pageFirst!=null) return;
+		byte[] b=archive.read(recordsOffset,pages*4);
+		int[] first=new int[pages];
+		for(int i=0;i<pages;i++) first[i]=readInt(b,i*4);
+		pageFirst=first;
+	}
+
+	/**
+	 * @return the headword of a record, counting records from the start of the
+	 * first page.
+	 */
+	private String getRecordWord(int record) throws IOException
+	{
+		if(pageFirst==null) loadRecords();
+		int lo=0,hi=pages-1;
+		while(lo<hi)
+		{
+			int mid=(lo+hi+1)>>>1;
+			if(pageFirst[mid]<=record) lo=mid;
+			else hi=mid-1;
+		}
+		byte[] key=getPage(lo).getKey(record-pageFirst[lo]);
+		return new String(key,0,key.length,"UTF-8");
+	}
+
+	private static void addDeletes(String word,int distance,Hashtable deletes)
+	{
+		for(int i=0;i<word.length();i++)
+		{
+			String delete=word.substring(0,i)+word.substring(i+1);
+			if(!deletes.containsKey(delete))
+			{
+				deletes.put(delete,delete);
+				if(distance>1) addDeletes(delete,distance-1,deletes);
+			}
+		}
+	}
+
+	/**
+	 * FNV-1a over the UTF-16 chars, as the converter hashes the deletions.
+	 */
+	private static int hash(String s)
+	{
+		int h=0x811c9dc5;
+		for(int i=0;i<s.length();i++) h=(h^s.charAt(i))*0x01000193;
+		return h;
+	}
+
+	private static void sort(int[] a)
+	{
+		for(int i=1;i<a.length;i++)
+		{
+			int v=a[i],j=i;
+			for(;j>0&&a[j-1]>v;j--) a[j]=a[j-1];
+			a[j]=v;
+		}
+	}
+
+	/**
+	 * Optimal string alignment distance between a and b, or max+1 as soon as
+	 * it must be more than max.
+	 */
+	static int distance(String a,String b,int max)
+	{
+		int n=a.length(),m=b.length();
+		if(Math.abs(n-m)>max) return max+1;
+		int[] before=new int[m+1],previous=new int[m+1],current=new int[m+1];
+		for(int j=0;j<=m;j++) previous[j]=j;
+		for(int i=1;i<=n;i++)
+		{
+			current[0]=i;
+			int least=i;
+			for(int j=1;j<=m;j++)
+			{
+				int d=previous[j-1]+(a.charAt(i-1)==b.charAt(j-1)?0:1);
+				d=Math.min(d,Math.min(previous[j],current[j-1])+1);
+				if(i>1&&j>1&&a.charAt(i-1)==b.charAt(j-2)&&a.charAt(i-2)==b.charAt(j-1)) d=Math.min(d,before[j-2]+1);
+				current[j]=d;
+				least=Math.min(least,d);
+			}
+			if(least>max) return max+1;
+			int[] t=before;
+			before=previous;
+			previous=current;
+			current=t;
+		}
+		return previous[m];
+	}
+
+	/**
+	 * @return the last page whose first key is not greater than key, -1 if
+	 * key comes before all pages.
+	 */
+	private int findPage(byte[] key)
+	{
+		int lo=0,hi=pages-1;
+		while(lo<=hi)
+		{
+			int mid=(lo+hi)>>>1;
+			if(compareKeys(key,startKey[mid],0,startKey[mid].length)<0) hi=mid-1;
+			else lo=mid+1;
+		}
+		return hi;
+	}
+
+	/**
+	 * @param entry as returned by find().
+	 * @return the UTF-8 html definition of entry.
+	 */
+	public byte[] getDefinition(long entry) throws IOException
+	{
+		// old packs: file, offset and length
+		if(startWord!=null) return readDefinition((int)(entry>>>32),(int)(entry>>>16)&0xffff,(int)entry&0xffff);
+		int[] location=new int[4];
+		getPage((int)(entry>>>32)).getLocation((int)entry,location);
+		byte[] block=readBlock(location[0],location[1],location[2]+location[3]);
+		byte[] def=new byte[location[3]];
+		System.arraycopy(block,location[2],def,0,def.length);
+		return def;
+	}
+
+	/**
+	 * @return false if key is surely not in the dictionary, hashed the same
+	 * way LingoesLd2Reader fills the filter.
+	 */
+	private boolean mightContain(byte[] key)
+	{
+		int h1=0x811c9dc5,h2=0;
+		for(int i=0;i<key.length;i++)
+		{
+			h1=(h1^(key[i]&0xff))*0x01000193;
+			h2=31*h2+(key[i]&0xff);
+		}
+		h2^=h2>>>16;
+		h2*=0x85ebca6b;
+		h2^=h2>>>13;
+		h2*=0xc2b2ae35;
+		h2^=h2>>>16;
+		int bits=bloom.length*8;
+		for(int i=0;i<bloomHashes;i++)
+		{
+			int bit=((h1+i*h2)&0x7fffffff)%bits;
+			if((bloom[bit>>>3]&(1<<(bit&7)))==0) return false;
+		}
+		return true;
+	}
+
+	private synchronized byte[] readBlock(int offset,int length,int sizeHint) throws IOException
+	{
+		int i=0;
+		while(i<cachedData.length-1&&cachedData[i]!=null&&cachedBlock[i]!=offset) i++;
+		byte[] block=cachedData[i];
+		if(block==null||cachedBlock[i]!=offset)
+		{
+			// the block is followed by its CRC32
+			byte[] compressed=archive.read(blocksOffset+offset,length+4);
+			if(crc32(compressed,0,length)!=readInt(compressed,length)) throw new IOException("Corrupt block at "+offset);
+			block=inflater.inflate(presetDictionary,compressed,0,length,sizeHint);
+		}
+		// move it to the front, dropping the least recently used if it was not there
+		System.arraycopy(cachedBlock,0,cachedBlock,1,i);
+		System.arraycopy(cachedData,0,cachedData,1,i);
+		cachedBlock[0]=offset;
+		cachedData[0]=block;
+		return block;
+	}
+
+	private long findLegacy(String word) throws IOException
+	{
+		int i=pages-1;
+		while(i>=0&&word.compareTo(startWord[i])<0) i--;
+		if(i<0) return -1;
+		DataInputStream dis=new DataInputStream(open("/"+pack+".dd"+i));
+		try
+		{
+			if(i==0)
+			{
+				dis.readInt();
+				dis.readInt();
+				dis.readUTF();
+			}
+			// the page has no record count, it ends where the resource does
+			while(true)
+			{
+				int file=dis.readUnsignedShort(),offset=dis.readUnsignedShort(),length=dis.readUnsignedShort();
+				int c=word.compareTo(dis.readUTF().toLowerCase());
+				if(c<0) return -1;
+				if(c==0) return ((long)file<<32)|((long)offset<<16)|length;
+			}
+		} catch(EOFException e)
+		{
+			return -1;
+		} finally
+		{
+			dis.close();
+		}
+	}
+
+	private int completeLegacy(String prefix,String after,String[] words) throws IOException
+	{
+		String from=after!=null&&after.compareTo(prefix)>0?after:prefix,last=after;
+		int i=pages-1;
+		while(i>0&&from.compareTo(startWord[i])<0) i--;
+		int n=0;
+		for(;i<pages&&n<words.length;i++)
+		{
+			DataInputStream dis=new DataInputStream(open("/"+pack+".dd"+i));
+			try
+			{
+				if(i==0)
+				{
+					dis.readInt();
+					dis.readInt();
+					dis.readUTF();
+				}
+				while(n<words.length)
+				{
+					// file, offset and length
+					dis.readInt();
+					dis.readShort();
+					String word=dis.readUTF().toLowerCase();
+					if(word.compareTo(from)<0) continue;
+					if(!word.startsWith(prefix)) return n;
+					if(last!=null&&word.compareTo(last)<=0) continue;
+					last=word;
+					words[n++]=word;
+				}
+			} catch(EOFException e)
+			{
+				// on to the next page
+			} finally
+			{
+				dis.close();
+			}
+		}
+		return n;
+	}
+
+	private byte[] readDefinition(int file,int offset,int length) throws IOException
+	{
+		DataInputStream dis=new DataInputStream(open("/"+file+".ddf"));
+		try
+		{
+			while(offset>0)
+			{
+				long skipped=dis.skip(offset);
+				if(skipped<=0) throw new IOException("Unexpected end of /"+file+".ddf");
+				offset-=skipped;
+			}
+			byte[] b=new byte[length];
+			dis.readFully(b);
+			return b;
+		} finally
+		{
+			dis.close();
+		}
+	}
+
+	private IndexPage getPage(int i) throws IOException
+	{
+		Integer number=new Integer(i);
+		IndexPage page=(IndexPage)pageCache.get(number);
+		if(page==null)
+		{
+			byte[] data=archive.read(pageOffset[i],pageLength[i]);
+			if(crc32(data,0,data.length)!=pageCrc[i]) throw new IOException("Corrupt page "+i);
+			page=new IndexPage(data);
+			pageCache.put(number,page,page.memory());
+		}
+		return page;
+	}
+
+	private InputStream open(String resource) throws IOException
+	{
+		InputStream in=getClass().getResourceAsStream(resource);
+		if(in==null) throw new IOException("Missing "+resource);
+		return in;
+	}
+
+	private static int readInt(byte[] b,int off)
+	{
+		return ((b[off]&0xff)<<24)|((b[off+1]&0xff)<<16)|((b[off+2]&0xff)<<8)|(b[off+3]&0xff);
+	}
+
+	static int crc32(byte[] b,int off,int len)
+	{
+		if(crcTable==null)
+		{
+			int[] table=new int[256];
+			for(int n=0;n<256;n++)
+			{
+				int c=n;
+				for(int k=0;k<8;k++) c=(c&1)!=0?0xedb88320^(c>>>1):c>>>1;
+				table[n]=c;
+			}
+			crcTable=table;
+		}
+		int c=0xffffffff;
+		for(int i=off;i<off+len;i++) c=crcTable[(c^b[i])&0xff]^(c>>>8);
+		return ~c;
+	}
+
+	/**
+	 * Same key as the converter builds for each headword: folded to lower case
+	 * and encoded as UTF-8, so entries can be compared byte by byte.
+	 */
+	static byte[] sortKey(String word)
+	{
+		word=fold(word);
+		try
+		{
+			return word.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e)
+		{
+			return word.getBytes();
+		}
+	}
+
+	/**
+	 * Folds word to lower case as the converter does for the keys, which
+	 * spells the rule out since toLowerCase() on most phones only folds
+	 * Latin-1: the capitals of ASCII, Latin-1, Latin Extended-A, Greek and
+	 * Cyrillic become small letters, everything else stays.
+	 */
+	static String fold(String word)
+	{
+		char[] chars=null;
+		for(int i=0;i<word.length();i++)
+		{
+			char c=word.charAt(i),lower=fold(c);
+			if(lower==c) continue;
+			if(chars==null) chars=word.toCharArray();
+			chars[i]=lower;
+		}
+		return chars==null?word:new String(chars);
+	}
+
+	private static char fold(char c)
+	{
+		if(c<0x80) return c>='A'&&c<='Z'?(char)(c+0x20):c;
+		if(c<0x100) return c>=0xc0&&c<=0xde&&c!=0xd7?(char)(c+0x20):c;
+		if(c<0x180)
+		{
+			// capitals before their small letters, in two runs of even and
+			// two of odd code points, and a few letters without a pair
+			if(c==0x130||c==0x131||c==0x138||c==0x149||c==0x17f) return c;
+			if(c==0x178) return 0xff;
+			boolean odd=c>=0x139&&c<=0x148||c>=0x179;
+			return (c&1)==(odd?1:0)?(char)(c+1):c;
+		}
+		if(c>=0x386&&c<=0x3ab)
+		{
+			if(c==0x386) return 0x3ac;
+			if(c>=0x388&&c<=0x38a) return (char)(c+0x25);
+			if(c==0x38c) return 0x3cc;
+			if(c==0x38e||c==0x38f) return (char)(c+0x3f);
+			return c>=0x391&&c!=0x3a2?(char)(c+0x20):c;
+		}
+		if(c>=0x400&&c<=0x52f)
+		{
+			if(c<0x410) return (char)(c+0x50);
+			if(c<0x430) return (char)(c+0x20);
+			if(c==0x4c0) return 0x4cf;
+			if(c>=0x4c1&&c<=0x4ce) return (c&1)==1?(char)(c+1):c;
+			if(c>=0x460&&c<=0x481||c>=0x48a&&c<=0x4bf||c>=0x4d0) return (c&1)==0?(char)(c+1):c;
+		}
+		return c;
+	}
+
+	static int compareKeys(byte[] key,byte[] b,int off,int len)
+	{
+		int n=Math.min(key.length,len);
+		for(int i=0;i<n;i++)
+		{
+			int c=(key[i]&0xff)-(b[off+i]&0xff);
+			if(c!=0) return c;
+		}
+		return key.length-len;
+	}
+}
@@ -0,0 +1,469 @@
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Several dictionaries asked as one, in order of priority. Every dictionary
+ * has a thread of its own, so a query goes to all of them at once and takes
+ * about as long as the slowest, and one that has not answered within the
+ * timeout is left out of the result instead of holding up the others. With a
+ * single dictionary queries run on the calling thread.
+ *
+ * Headword lists are merged: completions in key order, everything else in
+ * the order of the dictionaries and then of their own results, each
+ * headword once. Definitions found in more than one dictionary are put
+ * together under the names of their dictionaries.
+ */
+public class DictionarySet
+{
+	/**
+	 * One step run against each dictionary.
+	 */
+	interface Query
+	{
+		Object run(Dictionary dict) throws IOException;
+	}
+
+	private final Dictionary[] dicts;
+	private final Member[] members;
+	private final int timeout;
+
+	/**
+	 * @param dicts the dictionaries, the one whose answers come first first.
+	 * @param timeout milliseconds to wait for the dictionaries to answer.
+	 */
+	public DictionarySet(Dictionary[] dicts,int timeout)
+	{
+		this.dicts=dicts;
+		this.timeout=timeout;
+		members=new Member[dicts.length>1?dicts.length:0];
+		for(int i=0;i<members.length;i++)
+		{
+			members[i]=new Member(dicts[i]);
+			new Thread(members[i]).start();
+		}
+	}
+
+	public int size()
+	{
+		return dicts.length;
+	}
+
+	public Dictionary get(int i)
+	{
+		return dicts[i];
+	}
+
+	/**
+	 * @return the names of the dictionaries.
+	 */
+	public String getName()
+	{
+		StringBuffer sb=new StringBuffer(dicts[0].getName());
+		for(int i=1;i<dicts.length;i++) sb.append(" / ").append(dicts[i].getName());
+		return sb.toString();
+	}
+
+	public int getWordCount()
+	{
+		int n=0;
+		for(int i=0;i<dicts.length;i++) n+=dicts[i].getWordCount();
+		return n;
+	}
+
+	/**
+	 * @return the UTF-8 html definition of word, or the definitions of all
+	 * dictionaries that have it, each under the name of its dictionary; null
+	 * if none does.
+	 */
+	public byte[] lookup(String word) throws IOException
+	{
+		long[] entries=find(word);
+		return entries==null?null:getDefinition(entries);
+	}
+
+	/**
+	 * @return for each dictionary the entry of word, as returned by
+	 * Dictionary.find(), -1 for those that do not have it or did not answer in
+	 * time; null if none has it.
+	 */
+	public long[] find(final String word) throws IOException
+	{
+		Object[] results=query(new Query()
+		{
+			public Object run(Dictionary dict) throws IOException
+			{
+				return new Long(dict.find(word));
+			}
+		});
+		long[] entries=new long[results.length];
+		boolean found=false;
+		for(int i=0;i<results.length;i++)
+		{
+			entries[i]=results[i]==null?-1:((Long)results[i]).longValue();
+			if(entries[i]>=0) found=true;
+		}
+		return found?entries:null;
+	}
+
+	/**
+	 * @param entries as returned by find().
+	 * @return a string naming the definitions of entries, the same for the
+	 * same packs and entries only.
+	 */
+	public String getKey(long[] entries)
+	{
+		StringBuffer sb=new StringBuffer();
+		for(int i=0;i<entries.length;i++)
+		{
+			if(entries[i]<0) continue;
+			if(sb.length()>0) sb.append(',');
+			sb.append(dicts[i].getPack()).append('#').append(entries[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param entries as returned by find().
+	 * @return the UTF-8 html definition of entries, or the definitions of all
+	 * dictionaries that have one, each under the name of its dictionary; null
+	 * if none could be read in time.
+	 */
+	public byte[] getDefinition(final long[] entries) throws IOException
+	{
+		// a dictionary still busy with find() would hold up the others
+		boolean[] ask=new boolean[entries.length];
+		for(int i=0;i<entries.length;i++) ask[i]=entries[i]>=0;
+		Object[] results=query(new Query()
+		{
+			public Object run(Dictionary dict) throws IOException
+			{
+				int i=0;
+				while(dicts[i]!=dict) i++;
+				return dict.getDefinition(entries[i]);
+			}
+		},ask);
+		int found=0;
+		byte[] only=null;
+		for(int i=0;i<results.length;i++)
+		{
+			if(results[i]==null) continue;
+			found++;
+			only=(byte[])results[i];
+		}
+		if(found<=1) return only;
+		StringBuffer html=new StringBuffer("<html><body>");
+		for(int i=0;i<results.length;i++)
+		{
+			if(results[i]==null) continue;
+			html.append("<h4>").append(escape(dicts[i].getName())).append("</h4>");
+			html.append(body((byte[])results[i]));
+		}
+		html.append("</body></html>");
+		return html.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Headwords of all dictionaries starting with prefix, in key order, see
+	 * Dictionary.complete().
+	 */
+	public int complete(final String prefix,final String after,String[] words) throws IOException
+	{
+		final int n=words.length;
+		Object[] results=query(new Query()
+		{
+			public Object run(Dictionary dict) throws IOException
+			{
+				String[] words=new String[n];
+				return trim(words,dict.complete(prefix,after,words));
+			}
+		});
+		// merge the sorted lists, dropping headwords more than one has
+		int[] next=new int[results.length];
+		int count=0;
+		byte[] last=null;
+		while(count<n)
+		{
+			int best=-1;
+			byte[] bestKey=null;
+			for(int i=0;i<results.length;i++)
+			{
+				String[] list=(String[])results[i];
+				if(list==null||next[i]==list.length) continue;
+				byte[] key=Dictionary.sortKey(list[next[i]]);
+				if(best<0||Dictionary.compareKeys(key,bestKey,0,bestKey.length)<0)
+				{
+					best=i;
+					bestKey=key;
+				}
+			}
+			if(best<0) break;
+			String word=((String[])results[best])[next[best]++];
+			if(last!=null&&Dictionary.compareKeys(bestKey,last,0,last.length)==0) continue;
+			last=bestKey;
+			words[count++]=word;
+		}
+		return count;
+	}
+
+	/**
+	 * See Dictionary.fuzzy().
+	 */
+	public int fuzzy(final String word,final int maxDistance,String[] words) throws IOException
+	{
+		final int n=words.length;
+		return merge(query(new Query()
+		{
+			public Object run(Dictionary dict) throws IOException
+			{
+				String[] words=new String[n];
+				return trim(words,dict.fuzzy(word,maxDistance,words));
+			}
+		}),words);
+	}
+
+	/**
+	 * See Dictionary.search().
+	 */
+	public int search(final String query,final boolean all,String[] words) throws IOException
+	{
+		final int n=words.length;
+		return merge(query(new Query()
+		{
+			public Object run(Dictionary dict) throws IOException
+			{
+				String[] words=new String[n];
+				return trim(words,dict.search(query,all,words));
+			}
+		}),words);
+	}
+
+	/**
+	 * See Dictionary.match().
+	 */
+	public int match(final String pattern,String[] words) throws IOException
+	{
+		final int n=words.length;
+		return merge(query(new Query()
+		{
+			public Object run(Dictionary dict) throws IOException
+			{
+				String[] words=new String[n];
+				return trim(words,dict.match(pattern,words));
+			}
+		}),words);
+	}
+
+	/**
+	 * Stops the threads of the dictionaries.
+	 */
+	public void stop()
+	{
+		for(int i=0;i<members.length;i++) members[i].stop();
+	}
+
+	/**
+	 * @return the result of query for each dictionary, null for those that
+	 * failed or did not answer in time.
+	 * @throws IOException if every dictionary failed.
+	 */
+	private Object[] query(Query query) throws IOException
+	{
+		return query(query,null);
+	}
+
+	/**
+	 * @param ask whether to ask each dictionary, null to ask all; those not
+	 * asked get null without waiting for them.
+	 */
+	private Object[] query(Query query,boolean[] ask) throws IOException
+	{
+		if(members.length==0) return new Object[]{query.run(dicts[0])};
+		Batch batch=new Batch(members.length);
+		for(int i=0;i<members.length;i++)
+		{
+			if(ask==null||ask[i]) members[i].submit(query,batch,i);
+			else batch.answer(i,null,null);
+		}
+		return batch.await(timeout);
+	}
+
+	/**
+	 * Puts the lists in results together in order, each headword once.
+	 */
+	private static int merge(Object[] results,String[] words)
+	{
+		int n=0;
+		for(int i=0;i<results.length&&n<words.length;i++)
+		{
+			String[] list=(String[])results[i];
+			if(list==null) continue;
+			for(int j=0;j<list.length&&n<words.length;j++)
+			{
+				int k=0;
+				while(k<n&&!words[k].equals(list[j])) k++;
+				if(k==n) words[n++]=list[j];
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return text with the characters html gives a meaning to written as
+	 * entities.
+	 */
+	private static String escape(String text)
+	{
+		StringBuffer sb=new StringBuffer(text.length());
+		for(int i=0;i<text.length();i++)
+		{
+			char c=text.charAt(i);
+			if(c=='&') sb.append("&amp;");
+			else if(c=='<') sb.append("&lt;");
+			else if(c=='>') sb.append("&gt;");
+			else if(c=='"') sb.append("&quot;");
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static String[] trim(String[] words,int n)
+	{
+		String[] trimmed=new String[n];
+		System.arraycopy(words,0,trimmed,0,n);
+		return trimmed;
+	}
+
+	/**
+	 * @return what is between the body tags of an html definition, or all of
+	 * it if it has none.
+	 */
+	private static String body(byte[] def) throws IOException
+	{
+		String html=new String(def,"UTF-8");
+		int start=html.indexOf("<body>"),end=html.indexOf("</body>",start+1);
+		if(start<0||end<0) return html;
+		return html.substring(start+6,end);
+	}
+
+	/**
+	 * The results of one query, filled in by the members as they answer.
+	 */
+	private static class Batch
+	{
+		private final Object[] results;
+		private int answered,failed;
+		private boolean closed;
+		private IOException failure;
+
+		Batch(int size)
+		{
+			results=new Object[size];
+		}
+
+		synchronized void answer(int i,Object result,IOException e)
+		{
+			if(closed) return;
+			results[i]=result;
+			if(e!=null)
+			{
+				if(failure==null) failure=e;
+				failed++;
+			}
+			answered++;
+			notify();
+		}
+
+		synchronized boolean isClosed()
+		{
+			return closed;
+		}
+
+		synchronized Object[] await(int timeout) throws IOException
+		{
+			long deadline=System.currentTimeMillis()+timeout;
+			while(answered<results.length)
+			{
+				long left=deadline-System.currentTimeMillis();
+				if(left<=0) break;
+				try
+				{
+					wait(left);
+				} catch(InterruptedException e)
+				{
+					break;
+				}
+			}
+			// answers coming in later are dropped
+			closed=true;
+			if(failed>0&&failed==answered) throw failure;
+			return results;
+		}
+	}
+
+	/**
+	 * The thread asking one dictionary, in the order the queries came in.
+	 * Queries whose batch gave up waiting by the time their turn comes are
+	 * not run at all.
+	 */
+	private static class Member implements Runnable
+	{
+		private final Dictionary dict;
+		// query, batch and index of each query waiting
+		private final Vector waiting=new Vector();
+		private boolean stopped;
+
+		Member(Dictionary dict)
+		{
+			this.dict=dict;
+		}
+
+		synchronized void submit(Query query,Batch batch,int index)
+		{
+			waiting.addElement(new Object[]{query,batch,new Integer(index)});
+			notify();
+		}
+
+		synchronized void stop()
+		{
+			stopped=true;
+			notify();
+		}
+
+		public void run()
+		{
+			while(true)
+			{
+				Object[] next;
+				synchronized(this)
+				{
+					while(waiting.isEmpty()&&!stopped)
+					{
+						try
+						{
+							wait();
+						} catch(InterruptedException e)
+						{
+						}
+					}
+					if(stopped) return;
+					next=(Object[])waiting.elementAt(0);
+					waiting.removeElementAt(0);
+				}
+				Query query=(Query)next[0];
+				Batch batch=(Batch)next[1];
+				int index=((Integer)next[2]).intValue();
+				if(batch.isClosed()) continue;
+				try
+				{
+					batch.answer(index,query.run(dict),null);
+				} catch(IOException e)
+				{
+					batch.answer(index,null,e);
+				} catch(RuntimeException e)
+				{
+					batch.answer(index,null,new IOException(dict.getName()+": "+e));
+				}
+			}
+		}
+	}
+}
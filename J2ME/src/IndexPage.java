@@ -0,0 +1,149 @@
+/**
+ * An index page with all of its front coded keys spelled out, so lookups in
+ * it are a plain binary search. The keys are packed into one array with the
+ * start of every key next to it, and the position of every record's varints
+ * in the page is kept to read the definition location on a match.
+ */
+public final class IndexPage
+{
+	private final byte[] data;
+	private final byte[] keys;
+	// key i is keys[keyStart[i]..keyStart[i+1])
+	private final int[] keyStart;
+	private final int[] valueStart;
+	private final int count;
+
+	/**
+	 * Decodes a page as LingoesLd2Reader writes it: records, then the int
+	 * restart offsets and their count.
+	 */
+	public IndexPage(byte[] data)
+	{
+		this.data=data;
+		int restarts=readInt(data,data.length-4);
+		int end=data.length-4-4*restarts;
+		int n=0,total=0;
+		int[] value=new int[2];
+		// first pass to size the arrays
+		for(int pos=0;pos<end;n++)
+		{
+			pos=readVarInt(data,pos,value,0);
+			pos=readVarInt(data,pos,value,1);
+			total+=value[0]+value[1];
+			pos=skipVarInts(data,pos+value[1],4);
+		}
+		count=n;
+		keys=new byte[total];
+		keyStart=new int[n+1];
+		valueStart=new int[n];
+		int k=0;
+		for(int i=0,pos=0;i<n;i++)
+		{
+			pos=readVarInt(data,pos,value,0);
+			pos=readVarInt(data,pos,value,1);
+			keyStart[i]=k;
+			if(value[0]>0) System.arraycopy(keys,keyStart[i-1],keys,k,value[0]);
+			System.arraycopy(data,pos,keys,k+value[0],value[1]);
+			k+=value[0]+value[1];
+			pos+=value[1];
+			valueStart[i]=pos;
+			pos=skipVarInts(data,pos,4);
+		}
+		keyStart[n]=k;
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return about how many bytes of heap the page takes.
+	 */
+	public int memory()
+	{
+		return data.length+keys.length+8*count+64;
+	}
+
+	/**
+	 * @return the index of the first key that is not less than key, size()
+	 * if there is none.
+	 */
+	public int lowerBound(byte[] key)
+	{
+		int lo=0,hi=count;
+		while(lo<hi)
+		{
+			int mid=(lo+hi)>>>1;
+			if(Dictionary.compareKeys(key,keys,keyStart[mid],keyStart[mid+1]-keyStart[mid])>0) lo=mid+1;
+			else hi=mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the index of key or -1.
+	 */
+	public int find(byte[] key)
+	{
+		int i=lowerBound(key);
+		if(i<count&&Dictionary.compareKeys(key,keys,keyStart[i],keyStart[i+1]-keyStart[i])==0) return i;
+		return -1;
+	}
+
+	/**
+	 * @return how key compares to key i, as Dictionary.compareKeys().
+	 */
+	public int compare(byte[] key,int i)
+	{
+		return Dictionary.compareKeys(key,keys,keyStart[i],keyStart[i+1]-keyStart[i]);
+	}
+
+	public boolean startsWith(int i,byte[] prefix)
+	{
+		if(keyStart[i+1]-keyStart[i]<prefix.length) return false;
+		for(int j=0;j<prefix.length;j++) if(keys[keyStart[i]+j]!=prefix[j]) return false;
+		return true;
+	}
+
+	public byte[] getKey(int i)
+	{
+		byte[] key=new byte[keyStart[i+1]-keyStart[i]];
+		System.arraycopy(keys,keyStart[i],key,0,key.length);
+		return key;
+	}
+
+	/**
+	 * Reads the block offset, block length, definition offset and definition
+	 * length of record i into location.
+	 */
+	public void getLocation(int i,int[] location)
+	{
+		int pos=valueStart[i];
+		for(int j=0;j<4;j++) pos=readVarInt(data,pos,location,j);
+	}
+
+	static int readVarInt(byte[] b,int off,int[] value,int i)
+	{
+		int v=0,shift=0,c;
+		do
+		{
+			c=b[off++];
+			v|=(c&0x7f)<<shift;
+			shift+=7;
+		} while((c&0x80)!=0);
+		value[i]=v;
+		return off;
+	}
+
+	private static int skipVarInts(byte[] b,int off,int n)
+	{
+		while(n>0) if((b[off++]&0x80)==0) n--;
+		return off;
+	}
+
+	static int readInt(byte[] b,int off)
+	{
+		return ((b[off]&0xff)<<24)|((b[off+1]&0xff)<<16)|((b[off+2]&0xff)<<8)|(b[off+3]&0xff);
+	}
+}
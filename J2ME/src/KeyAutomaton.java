@@ -0,0 +1,177 @@
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The minimal automaton LingoesLd2Reader writes over the keys, or over the
+ * keys spelled backwards, walked to find the keys matching a pattern with ?
+ * for any one character and * for any run of them.
+ *
+ * The walk follows the arcs in label order and carries the set of pattern
+ * positions still alive as a bit mask, so every key is reached once and a
+ * branch is dropped as soon as no position is left. A pattern starting with
+ * letters only visits the keys starting with them, which is why suffix
+ * searches walk the automaton of reversed keys.
+ */
+public final class KeyAutomaton
+{
+	private static final int ARC_LAST=1,ARC_FINAL=2,ARC_STOP=4,ARC_NEXT=8;
+	// pattern items besides the bytes of literal characters
+	private static final int ANY=-1,STAR=-2;
+	private final byte[] data;
+	private final int root;
+	// the pattern being matched and the results so far
+	private int[] pattern;
+	private String[] words;
+	private int found;
+	private boolean reversed;
+	private byte[] path=new byte[64];
+
+	/**
+	 * @param data a section as the converter writes it: the int offset of the
+	 * start state, the int length of the states and the states.
+	 */
+	public KeyAutomaton(byte[] data)
+	{
+		root=IndexPage.readInt(data,0);
+		this.data=new byte[IndexPage.readInt(data,4)];
+		System.arraycopy(data,8,this.data,0,this.data.length);
+	}
+
+	public int memory()
+	{
+		return data.length;
+	}
+
+	/**
+	 * @param pattern lower case, spelled backwards for the automaton of
+	 * reversed keys; at most 63 bytes of UTF-8 besides the wildcards.
+	 * @param reversed whether the keys are spelled backwards, to turn them
+	 * round again.
+	 * @param words filled with up to words.length matching keys in the order
+	 * of the automaton.
+	 * @return how many keys were put in words.
+	 */
+	public synchronized int match(String pattern,boolean reversed,String[] words)
+	{
+		this.pattern=compile(pattern);
+		this.words=words;
+		this.reversed=reversed;
+		found=0;
+		long start=close(1L);
+		if(root>=0&&start!=0&&words.length>0) walk(root,start,0,0);
+		this.words=null;
+		return found;
+	}
+
+	/**
+	 * Follows the arcs of the state at address with the pattern positions in
+	 * alive, depth bytes into the key and with pending continuation bytes
+	 * left of the current character.
+	 */
+	private void walk(int address,long alive,int depth,int pending)
+	{
+		// the state written after this one, for ARC_NEXT
+		int end=address;
+		while((data[end]&ARC_LAST)==0) end+=(data[end]&(ARC_STOP|ARC_NEXT))!=0?2:5;
+		end+=(data[end]&(ARC_STOP|ARC_NEXT))!=0?2:5;
+		for(int arc=address;found<words.length;)
+		{
+			int flags=data[arc],label=data[arc+1]&0xff;
+			int target=-1;
+			if((flags&ARC_NEXT)!=0) target=end;
+			else if((flags&ARC_STOP)==0) target=((data[arc+2]&0xff)<<16)|((data[arc+3]&0xff)<<8)|(data[arc+4]&0xff);
+			int left=pending>0?pending-1:continuations(label);
+			long next=step(alive,label,left==0);
+			if(next!=0)
+			{
+				if(depth==path.length)
+				{
+					byte[] b=new byte[path.length*2];
+					System.arraycopy(path,0,b,0,depth);
+					path=b;
+				}
+				path[depth]=(byte)label;
+				if(left==0) next=close(next);
+				if(left==0&&(flags&ARC_FINAL)!=0&&(next&(1L<<this.pattern.length))!=0) add(depth+1);
+				if(target>=0&&found<words.length) walk(target,next,depth+1,left);
+			}
+			if((flags&ARC_LAST)!=0) break;
+			arc+=(flags&(ARC_STOP|ARC_NEXT))!=0?2:5;
+		}
+	}
+
+	/**
+	 * @return the pattern positions alive after reading one byte of a key,
+	 * the last of its character if complete.
+	 */
+	private long step(long alive,int label,boolean complete)
+	{
+		long next=0;
+		for(int i=0;i<pattern.length;i++)
+		{
+			if((alive&(1L<<i))==0) continue;
+			int item=pattern[i];
+			if(item==STAR) next|=1L<<i;
+			else if(item==ANY) next|=complete?1L<<(i+1):1L<<i;
+			else if(item==label) next|=1L<<(i+1);
+		}
+		return next;
+	}
+
+	/**
+	 * @return alive with the positions after every * it can skip.
+	 */
+	private long close(long alive)
+	{
+		for(int i=0;i<pattern.length;i++) if(pattern[i]==STAR&&(alive&(1L<<i))!=0) alive|=1L<<(i+1);
+		return alive;
+	}
+
+	private void add(int length)
+	{
+		String key;
+		try
+		{
+			key=new String(path,0,length,"UTF-8");
+		} catch(UnsupportedEncodingException e)
+		{
+			key=new String(path,0,length);
+		}
+		words[found++]=reversed?new StringBuffer(key).reverse().toString():key;
+	}
+
+	/**
+	 * @return how many continuation bytes follow a UTF-8 lead byte.
+	 */
+	private static int continuations(int lead)
+	{
+		if(lead<0xc0) return 0;
+		if(lead<0xe0) return 1;
+		if(lead<0xf0) return 2;
+		return 3;
+	}
+
+	private static int[] compile(String pattern)
+	{
+		byte[] bytes;
+		try
+		{
+			bytes=pattern.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e)
+		{
+			bytes=pattern.getBytes();
+		}
+		int[] items=new int[bytes.length];
+		int n=0;
+		for(int i=0;i<bytes.length;i++)
+		{
+			int b=bytes[i]&0xff;
+			// runs of * mean no more than one
+			if(b=='*'&&n>0&&items[n-1]==STAR) continue;
+			items[n++]=b=='?'?ANY:b=='*'?STAR:b;
+		}
+		if(n>63) throw new IllegalArgumentException("Pattern too long");
+		int[] result=new int[n];
+		System.arraycopy(items,0,result,0,n);
+		return result;
+	}
+}
@@ -0,0 +1,301 @@
+import gr.fire.browser.Browser;
+import gr.fire.browser.util.Page;
+import gr.fire.core.Container;
+
+import java.io.ByteArrayInputStream;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.microedition.lcdui.Display;
+
+/**
+ * Looks words up and renders their definitions on a thread of its own, so
+ * the UI stays responsive. There is only ever one query that matters: a new
+ * one supersedes the one in progress, which is stopped between steps, and
+ * whose rendering is stopped too. Results reach the listener on the event
+ * thread.
+ */
+public class LookupWorker implements Runnable
+{
+	public interface Listener
+	{
+		/**
+		 * The lookup of word has taken longer than the loading threshold.
+		 */
+		void lookupSlow(String word);
+
+		void lookupDone(String word,Container page);
+
+		/**
+		 * @param similar headwords a typo or two away from word, the closest
+		 * first, empty if there are none.
+		 */
+		void lookupNotFound(String word,String[] similar);
+
+		void lookupFailed(String word,Exception e);
+
+		/**
+		 * @param words headwords whose definitions contain all the words of
+		 * query, the best matches first, or that match the pattern query;
+		 * empty if there are none.
+		 */
+		void searchDone(String query,String[] words);
+	}
+
+	private final Display display;
+	private final DictionarySet dict;
+	private final Browser browser;
+	private final LruCache renderCache;
+	private final Listener listener;
+	private final int loadingDelay;
+	private final Timer timer=new Timer();
+	// how many similar headwords to offer for a word not found, and how far off
+	private static final int SIMILAR=8;
+	private static final int SIMILAR_DISTANCE=2;
+	// how many headwords a search of the definitions offers
+	private static final int FOUND=50;
+	// the query to run next, null when there is none
+	private String pending;
+	// what to do with pending
+	private int pendingKind;
+	private static final int LOOKUP=0,SEARCH=1,MATCH=2;
+	// counts queries, a result is only delivered if no newer one came in
+	private int generation;
+	// the last query whose result went to the listener
+	private int delivered;
+	private boolean stopped;
+
+	/**
+	 * @param renderCache rendered definitions by pack, entry and viewport
+	 * width.
+	 * @param loadingDelay milliseconds a lookup may take before the listener
+	 * hears it is slow.
+	 */
+	public LookupWorker(Display display,DictionarySet dict,Browser browser,LruCache renderCache,Listener listener,int loadingDelay)
+	{
+		this.display=display;
+		this.dict=dict;
+		this.browser=browser;
+		this.renderCache=renderCache;
+		this.listener=listener;
+		this.loadingDelay=loadingDelay;
+		Thread thread=new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Looks word up, dropping any query that has not finished yet.
+	 */
+	public synchronized void lookup(String word)
+	{
+		pending=word;
+		pendingKind=LOOKUP;
+		generation++;
+		browser.stopRendering();
+		notify();
+	}
+
+	/**
+	 * Searches the definitions for the words of query, dropping any query
+	 * that has not finished yet.
+	 */
+	public synchronized void search(String query)
+	{
+		pending=query;
+		pendingKind=SEARCH;
+		generation++;
+		browser.stopRendering();
+		notify();
+	}
+
+	/**
+	 * Finds the headwords matching pattern, with ? for any one character and *
+	 * for any number of them, dropping any query that has not finished yet.
+	 */
+	public synchronized void match(String pattern)
+	{
+		pending=pattern;
+		pendingKind=MATCH;
+		generation++;
+		browser.stopRendering();
+		notify();
+	}
+
+	/**
+	 * Drops the query in progress, if any, without starting another.
+	 */
+	public synchronized void cancel()
+	{
+		pending=null;
+		generation++;
+		browser.stopRendering();
+	}
+
+	public synchronized void stop()
+	{
+		stopped=true;
+		cancel();
+		timer.cancel();
+		notify();
+	}
+
+	private synchronized boolean isCurrent(int query)
+	{
+		return query==generation&&!stopped;
+	}
+
+	/**
+	 * @return whether the result of query should go to the listener.
+	 */
+	private synchronized boolean deliver(int query)
+	{
+		if(!isCurrent(query)) return false;
+		delivered=query;
+		return true;
+	}
+
+	/**
+	 * Runs result on the event thread, unless a newer query has come in by
+	 * then.
+	 */
+	private void post(final int query,final Runnable result)
+	{
+		display.callSerially(new Runnable()
+		{
+			public void run()
+			{
+				if(isCurrent(query)) result.run();
+			}
+		});
+	}
+
+	public void run()
+	{
+		while(true)
+		{
+			final String word;
+			final int query;
+			final int kind;
+			synchronized(this)
+			{
+				while(pending==null&&!stopped)
+				{
+					try
+					{
+						wait();
+					} catch(InterruptedException e)
+					{
+					}
+				}
+				if(stopped) return;
+				word=pending;
+				kind=pendingKind;
+				query=generation;
+				pending=null;
+			}
+			TimerTask slow=new TimerTask()
+			{
+				public void run()
+				{
+					// under the lock, so it can not come after the result
+					synchronized(LookupWorker.this)
+					{
+						if(isCurrent(query)&&delivered!=query) post(query,new Runnable()
+						{
+							public void run()
+							{
+								listener.lookupSlow(word);
+							}
+						});
+					}
+				}
+			};
+			timer.schedule(slow,loadingDelay);
+			try
+			{
+				if(kind!=LOOKUP)
+				{
+					final String[] words=kind==SEARCH?searchDefinitions(word):matchHeadwords(word);
+					slow.cancel();
+					if(deliver(query)) post(query,new Runnable()
+					{
+						public void run()
+						{
+							listener.searchDone(word,words);
+						}
+					});
+					continue;
+				}
+				final Container page=lookup(word,query);
+				// still the current query, so the word is not there
+				final String[] similar=page==null&&isCurrent(query)?similar(word):null;
+				slow.cancel();
+				if(deliver(query)) post(query,new Runnable()
+				{
+					public void run()
+					{
+						if(page==null) listener.lookupNotFound(word,similar);
+						else listener.lookupDone(word,page);
+					}
+				});
+			} catch(final Exception e)
+			{
+				slow.cancel();
+				if(deliver(query)) post(query,new Runnable()
+				{
+					public void run()
+					{
+						listener.lookupFailed(word,e);
+					}
+				});
+			}
+		}
+	}
+
+	private String[] searchDefinitions(String query) throws Exception
+	{
+		String[] words=new String[FOUND];
+		return trim(words,dict.search(query,true,words));
+	}
+
+	private String[] matchHeadwords(String pattern) throws Exception
+	{
+		String[] words=new String[FOUND];
+		return trim(words,dict.match(pattern,words));
+	}
+
+	private static String[] trim(String[] words,int n)
+	{
+		String[] trimmed=new String[n];
+		System.arraycopy(words,0,trimmed,0,n);
+		return trimmed;
+	}
+
+	private String[] similar(String word) throws Exception
+	{
+		String[] words=new String[SIMILAR];
+		return trim(words,dict.fuzzy(word,SIMILAR_DISTANCE,words));
+	}
+
+	/**
+	 * @return the rendered definition of word, null if there is none or the
+	 * query was superseded.
+	 */
+	private Container lookup(String word,int query) throws Exception
+	{
+		long[] entries=dict.find(word);
+		if(entries==null||!isCurrent(query)) return null;
+		// the packs and entries name the page, whatever headword led there
+		String key=dict.getKey(entries)+"@"+browser.getViewportWidth();
+		Container page=(Container)renderCache.get(key);
+		if(page!=null) return page;
+		byte[] def=dict.getDefinition(entries);
+		if(def==null||!isCurrent(query)) return null;
+		Page p=browser.loadPage(new ByteArrayInputStream(def),"UTF-8");
+		if(p.isCanceled()) return null;
+		page=p.getPageContainer();
+		// the rendered page is guessed to take about 4 times the heap of its html
+		renderCache.put(key,page,def.length*4);
+		return page;
+	}
+}
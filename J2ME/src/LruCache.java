@@ -0,0 +1,116 @@
+import java.util.Hashtable;
+
+/**
+ * Least recently used cache bounded by the total weight of its values,
+ * usually an estimate of the bytes they take, rather than by their number.
+ */
+public final class LruCache
+{
+	private static final class Entry
+	{
+		Object key,value;
+		int weight;
+		Entry previous,next;
+	}
+
+	private final int budget;
+	private final Hashtable entries=new Hashtable();
+	// head is the most recently used, tail the next to go
+	private Entry head,tail;
+	private int used,hits,misses;
+
+	/**
+	 * @param budget weight the values may have together; a value heavier
+	 * than that is still kept until the next one comes in.
+	 */
+	public LruCache(int budget)
+	{
+		this.budget=budget;
+	}
+
+	/**
+	 * @return the value for key or null if it is not cached.
+	 */
+	public synchronized Object get(Object key)
+	{
+		Entry e=(Entry)entries.get(key);
+		if(e==null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		unlink(e);
+		link(e);
+		return e.value;
+	}
+
+	public synchronized void put(Object key,Object value,int weight)
+	{
+		Entry e=(Entry)entries.get(key);
+		if(e!=null)
+		{
+			unlink(e);
+			used-=e.weight;
+		} else
+		{
+			e=new Entry();
+			e.key=key;
+			entries.put(key,e);
+		}
+		e.value=value;
+		e.weight=weight;
+		used+=weight;
+		link(e);
+		while(used>budget&&tail!=e)
+		{
+			Entry old=tail;
+			unlink(old);
+			entries.remove(old.key);
+			used-=old.weight;
+		}
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		head=tail=null;
+		used=0;
+	}
+
+	public synchronized int getHits()
+	{
+		return hits;
+	}
+
+	public synchronized int getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return the total weight of the cached values.
+	 */
+	public synchronized int getUsed()
+	{
+		return used;
+	}
+
+	private void link(Entry e)
+	{
+		e.previous=null;
+		e.next=head;
+		if(head!=null) head.previous=e;
+		head=e;
+		if(tail==null) tail=e;
+	}
+
+	private void unlink(Entry e)
+	{
+		if(e.previous!=null) e.previous.next=e.next;
+		else head=e.next;
+		if(e.next!=null) e.next.previous=e.previous;
+		else tail=e.previous;
+		e.previous=e.next=null;
+	}
+}
@@ -0,0 +1,219 @@
+import java.util.Vector;
+
+import javax.microedition.lcdui.Canvas;
+import javax.microedition.lcdui.Command;
+import javax.microedition.lcdui.CustomItem;
+import javax.microedition.lcdui.Display;
+import javax.microedition.lcdui.Font;
+import javax.microedition.lcdui.Graphics;
+import javax.microedition.lcdui.ItemCommandListener;
+
+/**
+ * The headwords that start with what has been typed, one per row. Only the
+ * rows on screen are held: moving past the last row asks the dictionary for
+ * the words after it, and moving before the first goes back to the previous
+ * rows, so the list costs the same for any number of matches. Picking a row
+ * (fire key or tap) runs the pick command.
+ *
+ * The rows are asked for through a CompletionWorker and shown once its
+ * answer is passed to completeDone(), the rows asked for before staying on
+ * screen meanwhile.
+ */
+public class SuggestionList extends CustomItem
+{
+	private final CompletionWorker worker;
+	private final Command pick;
+	private ItemCommandListener listener;
+	private final Font font=Font.getDefaultFont();
+	private final int foreground,background,highlightForeground,highlightBackground;
+	private final String[] rows;
+	private int count,selected=-1;
+	private boolean inside;
+	private String prefix="";
+	// what the rows on screen were asked for with, and before that the earlier screens
+	private String after;
+	private final Vector earlier=new Vector();
+	// the rows asked for and not answered yet, how they were reached and what with
+	private int move=NONE;
+	private String moveAfter;
+	private static final int NONE=0,FIRST=1,NEXT=2,PREVIOUS=3;
+
+	public SuggestionList(Display display,CompletionWorker worker,int rowCount,Command pick)
+	{
+		super(null);
+		this.worker=worker;
+		this.pick=pick;
+		rows=new String[rowCount];
+		foreground=display.getColor(Display.COLOR_FOREGROUND);
+		background=display.getColor(Display.COLOR_BACKGROUND);
+		highlightForeground=display.getColor(Display.COLOR_HIGHLIGHTED_FOREGROUND);
+		highlightBackground=display.getColor(Display.COLOR_HIGHLIGHTED_BACKGROUND);
+		setDefaultCommand(pick);
+	}
+
+	public void setItemCommandListener(ItemCommandListener listener)
+	{
+		super.setItemCommandListener(listener);
+		this.listener=listener;
+	}
+
+	/**
+	 * Asks for the first rows starting with prefix.
+	 */
+	public void setPrefix(String prefix)
+	{
+		this.prefix=prefix;
+		earlier.removeAllElements();
+		if(prefix.length()>0)
+		{
+			request(FIRST,null);
+			return;
+		}
+		worker.cancel();
+		move=FIRST;
+		completeDone(prefix,null,new String[0]);
+	}
+
+	/**
+	 * Shows the rows the worker found, unless they were asked for with an
+	 * earlier prefix.
+	 */
+	public void completeDone(String prefix,String after,String[] words)
+	{
+		if(move==NONE||!prefix.equals(this.prefix)) return;
+		int kind=move;
+		move=NONE;
+		if(kind==NEXT)
+		{
+			// nothing past the last row after all
+			if(words.length==0) return;
+			earlier.addElement(this.after==null?"":this.after);
+		}
+		this.after=after;
+		count=words.length;
+		for(int i=0;i<rows.length;i++) rows[i]=i<count?words[i]:null;
+		if(kind==FIRST) selected=inside&&count>0?0:-1;
+		else selected=kind==NEXT?0:count-1;
+		repaint();
+	}
+
+	/**
+	 * Forgets the rows asked for, which the worker failed to find, keeping
+	 * the rows on screen.
+	 */
+	public void completeFailed(String prefix)
+	{
+		if(move==NONE||!prefix.equals(this.prefix)) return;
+		if(move==PREVIOUS) earlier.addElement(moveAfter==null?"":moveAfter);
+		move=NONE;
+	}
+
+	/**
+	 * @return the word on the selected row, null if no row is selected.
+	 */
+	public String getSelected()
+	{
+		return selected<0?null:rows[selected];
+	}
+
+	private void request(int kind,String after)
+	{
+		move=kind;
+		moveAfter=after;
+		worker.complete(prefix,after,rows.length);
+	}
+
+	protected int getMinContentWidth()
+	{
+		return font.charWidth('W')*8;
+	}
+
+	protected int getMinContentHeight()
+	{
+		return font.getHeight()*rows.length;
+	}
+
+	protected int getPrefContentWidth(int height)
+	{
+		return font.charWidth('W')*16;
+	}
+
+	protected int getPrefContentHeight(int width)
+	{
+		return font.getHeight()*rows.length;
+	}
+
+	protected void paint(Graphics g,int w,int h)
+	{
+		int rowHeight=font.getHeight();
+		g.setFont(font);
+		g.setColor(background);
+		g.fillRect(0,0,w,h);
+		for(int i=0;i<count;i++)
+		{
+			if(i==selected)
+			{
+				g.setColor(highlightBackground);
+				g.fillRect(0,i*rowHeight,w,rowHeight);
+				g.setColor(highlightForeground);
+			} else g.setColor(foreground);
+			g.drawString(rows[i],2,i*rowHeight,Graphics.TOP|Graphics.LEFT);
+		}
+	}
+
+	protected boolean traverse(int dir,int viewportWidth,int viewportHeight,int[] visRect)
+	{
+		if(!inside)
+		{
+			// coming in from the item above or below
+			if(count==0) return false;
+			inside=true;
+			selected=dir==Canvas.UP?count-1:0;
+		} else if(dir==Canvas.DOWN)
+		{
+			if(selected<count-1) selected++;
+			else
+			{
+				if(count<rows.length) return false;
+				// the selection stays on the last row until the next rows are there
+				if(move==NONE) request(NEXT,rows[count-1]);
+			}
+		} else if(dir==Canvas.UP)
+		{
+			if(selected>0) selected--;
+			else
+			{
+				if(earlier.isEmpty()) return false;
+				if(move==NONE)
+				{
+					String first=(String)earlier.lastElement();
+					earlier.removeElementAt(earlier.size()-1);
+					request(PREVIOUS,first.length()==0?null:first);
+				}
+			}
+		}
+		int rowHeight=font.getHeight();
+		visRect[0]=0;
+		visRect[1]=selected*rowHeight;
+		visRect[2]=viewportWidth;
+		visRect[3]=rowHeight;
+		repaint();
+		return true;
+	}
+
+	protected void traverseOut()
+	{
+		inside=false;
+		selected=-1;
+		repaint();
+	}
+
+	protected void pointerReleased(int x,int y)
+	{
+		int row=y/font.getHeight();
+		if(row<0||row>=count) return;
+		selected=row;
+		repaint();
+		if(listener!=null) listener.commandAction(pick,this);
+	}
+}
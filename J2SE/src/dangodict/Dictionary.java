@@ -0,0 +1,667 @@
+package dangodict;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Lookups in a dictionary archive written by LingoesLd2Reader, the same 1.dda the midlet reads from its jar, for use
+ * on servers and desktops.
+ *
+ * The archive is memory mapped and never copied: the directory is parsed once at open, and lookups binary search the
+ * first keys of the pages and then the restart points of one page in place, decoding at most one restart interval of
+ * front coded keys into a buffer. A call borrows such buffers, an inflater and the last inflated block from a pool and
+ * gives them back when it returns, so any number of threads may read at once without locking, and once the pool holds
+ * as many readers as threads read at a time the only allocation is the result. Unlike buffers kept per thread this
+ * also suits servers starting a thread for every request. Each page is checked against its CRC32 the first time it is
+ * read, each block every time it is inflated.
+ *
+ * Given a block cache, inflated blocks are shared by all threads, so that popular definitions are not inflated again
+ * on every reader that asks for them.
+ *
+ * Keys are the headwords folded to lower case by fold(), the same rule the converter and the midlet spell out, and
+ * encoded as UTF-8, compared as unsigned bytes.
+ *
+ * Only the headword index and the definitions are read; the sections for fuzzy, full text and pattern searches are
+ * skipped for now.
+ */
+public final class Dictionary implements Closeable {
+    private static final int VERSION = 5;
+    private static final int HEADER_SIZE = 13;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FileChannel channel;
+    private final MappedByteBuffer archive;
+    private final String name;
+    private final int size;
+    private final byte[] presetDictionary;
+    private final int blocksOffset;
+    private final int pages;
+    private final int[] pageOffset, pageLength, pageCrc;
+    // the first key of page i is startKeys[startKeyOffset[i]..startKeyOffset[i + 1])
+    private final byte[] startKeys;
+    private final int[] startKeyOffset;
+    // 1 once the page passed its CRC check
+    private final AtomicIntegerArray verified;
+    // idle readers, null in the slots that hold none; a fixed array so that borrowing allocates nothing
+    private final AtomicReferenceArray<Reader> readers =
+            new AtomicReferenceArray<Reader>(4 * Runtime.getRuntime().availableProcessors());
+    // inflated blocks by offset, null for none
+    private final LruCache<Integer, byte[]> blocks;
+
+    /**
+     * What a call needs to read the archive: its own view of the mapping, since relative gets move the position,
+     * and buffers that grow to the largest key and block seen.
+     */
+    private final class Reader {
+        private final ByteBuffer view = archive.duplicate();
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private byte[] key = new byte[256];
+        private int keyLength;
+        private byte[] query = new byte[256];
+        private byte[] compressed = new byte[8 * 1024];
+        private byte[] block = new byte[16 * 1024];
+        private int blockOffset = -1, blockLength;
+        // the definition location of the record read last
+        private int defBlockOffset, defBlockLength, defOffset, defLength;
+    }
+
+    private Dictionary(FileChannel channel, int blockCacheSize) throws IOException {
+        this.channel = channel;
+        blocks = blockCacheSize > 0 ? new LruCache<Integer, byte[]>(blockCacheSize) : null;
+        if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Not a dictionary archive");
+        }
+        archive = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (archive.getInt(0) != 0x44444943 || archive.get(4) != VERSION) {
+            throw new IOException("Not a version " + VERSION + " dictionary archive");
+        }
+        int directoryOffset = archive.getInt(5), directoryLength = archive.getInt(9);
+        if (directoryOffset < HEADER_SIZE || directoryLength < 4
+                || (long) directoryOffset + directoryLength > archive.capacity()) {
+            throw new IOException("Corrupt dictionary header");
+        }
+        ByteBuffer directory = slice(directoryOffset, directoryLength - 4);
+        CRC32 crc = new CRC32();
+        crc.update(slice(directoryOffset, directoryLength - 4));
+        if ((int) crc.getValue() != archive.getInt(directoryOffset + directoryLength - 4)) {
+            throw new IOException("Corrupt dictionary directory");
+        }
+        size = directory.getInt();
+        byte[] utf = new byte[directory.getShort() & 0xffff];
+        directory.get(utf);
+        // writeUTF() is modified UTF-8, the same as UTF-8 for names without NUL or supplementary characters
+        name = new String(utf, UTF_8);
+        int dictionaryOffset = directory.getInt();
+        presetDictionary = new byte[directory.getInt()];
+        blocksOffset = directory.getInt();
+        pages = directory.getInt();
+        pageOffset = new int[pages];
+        pageLength = new int[pages];
+        pageCrc = new int[pages];
+        startKeyOffset = new int[pages + 1];
+        int start = directory.position();
+        int keyBytes = 0;
+        for (int i = 0; i < pages; i++) {
+            directory.position(directory.position() + 12);
+            int length = directory.getShort() & 0xffff;
+            directory.position(directory.position() + length);
+            keyBytes += length;
+        }
+        directory.position(start);
+        startKeys = new byte[keyBytes];
+        for (int i = 0, k = 0; i < pages; i++) {
+            pageOffset[i] = directory.getInt();
+            pageLength[i] = directory.getInt();
+            pageCrc[i] = directory.getInt();
+            int length = directory.getShort() & 0xffff;
+            startKeyOffset[i] = k;
+            directory.get(startKeys, k, length);
+            k += length;
+            if (pageOffset[i] < 0 || pageLength[i] < 4 || (long) pageOffset[i] + pageLength[i] > archive.capacity()) {
+                throw new IOException("Corrupt page " + i);
+            }
+        }
+        startKeyOffset[pages] = keyBytes;
+        verified = new AtomicIntegerArray(pages);
+        ByteBuffer preset = slice(dictionaryOffset, presetDictionary.length);
+        preset.get(presetDictionary);
+    }
+
+    /**
+     * Maps an archive, without a block cache.
+     */
+    public static Dictionary open(Path file) throws IOException {
+        return open(file, 0);
+    }
+
+    /**
+     * @param blockCacheSize bytes of inflated blocks to share between threads, 0 for none.
+     */
+    public static Dictionary open(Path file, int blockCacheSize) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new Dictionary(channel, blockCacheSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of headwords.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param word the word to look up, case does not matter.
+     * @return the UTF-8 html definition of word, null if there is none.
+     */
+    public byte[] lookup(String word) throws IOException {
+        Reader reader = acquire();
+        try {
+            return findRecord(reader, word) < 0 ? null : readDefinition(reader);
+        } finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * @param word the word to look up, case does not matter.
+     * @return a number standing for the entry of word, to pass to getDefinition(), or -1 if there is none.
+     */
+    public long find(String word) throws IOException {
+        Reader reader = acquire();
+        try {
+            int page = findRecord(reader, word);
+            return page < 0 ? -1 : (long) page << 32 | reader.view.position();
+        } finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * @param entry as returned by find().
+     * @return the UTF-8 html definition of entry.
+     */
+    public byte[] getDefinition(long entry) throws IOException {
+        int page = (int) (entry >>> 32);
+        if (entry < 0 || page >= pages || (int) entry < pageOffset[page]
+                || (int) entry >= pageOffset[page] + pageLength[page]) {
+            throw new IllegalArgumentException("No entry " + entry);
+        }
+        Reader reader = acquire();
+        try {
+            reader.view.position((int) entry);
+            readLocation(reader);
+            return readDefinition(reader);
+        } finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * @return up to n headwords starting with prefix in key order, folded to lower case like the keys, each once.
+     */
+    public List<String> range(String prefix, int n) throws IOException {
+        return range(prefix, null, n);
+    }
+
+    /**
+     * @param after only headwords past this one, null to start with the first; pass the last headword returned for
+     * the next ones.
+     * @return up to n headwords starting with prefix in key order, folded to lower case like the keys, each once.
+     */
+    public List<String> range(String prefix, String after, int n) throws IOException {
+        Reader reader = acquire();
+        try {
+            return range(reader, prefix, after, n);
+        } finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * @return the block cache given at open, null if there is none.
+     */
+    public LruCache<Integer, byte[]> getBlockCache() {
+        return blocks;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping itself goes when it is collected
+        channel.close();
+        for (int i = 0; i < readers.length(); i++) {
+            Reader reader = readers.getAndSet(i, null);
+            if (reader != null) {
+                reader.inflater.end();
+            }
+        }
+    }
+
+    private List<String> range(Reader reader, String prefix, String after, int n) throws IOException {
+        List<String> words = new ArrayList<String>(Math.min(n, 64));
+        byte[] key = sortKey(prefix);
+        byte[] last = after == null ? null : sortKey(after);
+        byte[] from = last != null && compareKeys(last, 0, last.length, key, 0, key.length) > 0 ? last : key;
+        for (int page = Math.max(findPage(from, from.length), 0); page < pages && words.size() < n; page++) {
+            int end = seek(reader, page, from, from.length);
+            ByteBuffer view = reader.view;
+            while (view.position() < end && words.size() < n) {
+                readKey(reader);
+                skipVarInts(view, 4);
+                if (reader.keyLength < key.length
+                        || compareKeys(reader.key, 0, key.length, key, 0, key.length) != 0) {
+                    if (compareKeys(reader.key, 0, reader.keyLength, from, 0, from.length) >= 0) {
+                        return words;
+                    }
+                    continue;
+                }
+                if (last != null && compareKeys(reader.key, 0, reader.keyLength, last, 0, last.length) <= 0) {
+                    continue;
+                }
+                last = new byte[reader.keyLength];
+                System.arraycopy(reader.key, 0, last, 0, last.length);
+                words.add(new String(last, UTF_8));
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Takes an idle reader from the pool, looking first in the slot of the calling thread so that threads running at
+     * the same time mostly take from different slots, or makes a new one.
+     */
+    private Reader acquire() {
+        int n = readers.length(), start = slot(n);
+        for (int i = 0; i < n; i++) {
+            Reader reader = readers.getAndSet((start + i) % n, null);
+            if (reader != null) {
+                return reader;
+            }
+        }
+        return new Reader();
+    }
+
+    /**
+     * Gives reader back to the pool, or frees its inflater when the pool is full.
+     */
+    private void release(Reader reader) {
+        int n = readers.length(), start = slot(n);
+        for (int i = 0; i < n; i++) {
+            if (readers.compareAndSet((start + i) % n, null, reader)) {
+                return;
+            }
+        }
+        reader.inflater.end();
+    }
+
+    private static int slot(int n) {
+        return (System.identityHashCode(Thread.currentThread()) & 0x7fffffff) % n;
+    }
+
+    /**
+     * Looks the key of word up, leaving the view of reader at the varints of the definition location and these read
+     * into reader.
+     *
+     * @return the page of the record, -1 if there is none.
+     */
+    private int findRecord(Reader reader, String word) throws IOException {
+        int length = queryKey(reader, word);
+        byte[] query = reader.query;
+        int page = findPage(query, length);
+        if (page < 0) {
+            return -1;
+        }
+        int end = seek(reader, page, query, length);
+        ByteBuffer view = reader.view;
+        while (view.position() < end) {
+            readKey(reader);
+            int c = compareKeys(reader.key, 0, reader.keyLength, query, 0, length);
+            if (c == 0) {
+                int at = view.position();
+                readLocation(reader);
+                view.position(at);
+                return page;
+            }
+            if (c > 0) {
+                return -1;
+            }
+            skipVarInts(view, 4);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the last page whose first key is not greater than key, -1 if key comes before all pages.
+     */
+    private int findPage(byte[] key, int length) {
+        int lo = 0, hi = pages - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKeys(key, 0, length, startKeys, startKeyOffset[mid], startKeyOffset[mid + 1]
+                    - startKeyOffset[mid]) < 0) {
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return hi;
+    }
+
+    /**
+     * Moves the view of reader to the last restart of page whose key is less than key, or to the first record, so
+     * that the first record not less than key is at most one restart interval ahead.
+     *
+     * @return the end of the records of the page.
+     */
+    private int seek(Reader reader, int page, byte[] key, int length) throws IOException {
+        int offset = pageOffset[page], end = offset + pageLength[page];
+        if (verified.get(page) == 0) {
+            reader.crc.reset();
+            reader.crc.update(slice(offset, pageLength[page]));
+            if ((int) reader.crc.getValue() != pageCrc[page]) {
+                throw new IOException("Corrupt page " + page);
+            }
+            verified.set(page, 1);
+        }
+        ByteBuffer view = reader.view;
+        int restarts = archive.getInt(end - 4);
+        int table = end - 4 - 4 * restarts;
+        // restarts hold their keys in full, shared length 0
+        int lo = 0, hi = restarts - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            view.position(offset + archive.getInt(table + 4 * mid));
+            readVarInt(view);
+            int keyLength = readVarInt(view);
+            int at = view.position();
+            int n = Math.min(keyLength, length), c = 0;
+            for (int i = 0; i < n && c == 0; i++) {
+                c = (archive.get(at + i) & 0xff) - (key[i] & 0xff);
+            }
+            if (c == 0) {
+                c = keyLength - length;
+            }
+            if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        view.position(hi < 0 ? offset : offset + archive.getInt(table + 4 * hi));
+        reader.keyLength = 0;
+        return table;
+    }
+
+    /**
+     * Reads the front coded key at the view of reader on top of the previous one.
+     */
+    private static void readKey(Reader reader) {
+        ByteBuffer view = reader.view;
+        int shared = readVarInt(view);
+        int rest = readVarInt(view);
+        if (shared + rest > reader.key.length) {
+            byte[] key = new byte[Math.max(shared + rest, reader.key.length * 2)];
+            System.arraycopy(reader.key, 0, key, 0, shared);
+            reader.key = key;
+        }
+        view.get(reader.key, shared, rest);
+        reader.keyLength = shared + rest;
+    }
+
+    private static void readLocation(Reader reader) {
+        ByteBuffer view = reader.view;
+        reader.defBlockOffset = readVarInt(view);
+        reader.defBlockLength = readVarInt(view);
+        reader.defOffset = readVarInt(view);
+        reader.defLength = readVarInt(view);
+    }
+
+    /**
+     * @return a copy of the definition whose location was read into reader last.
+     */
+    private byte[] readDefinition(Reader reader) throws IOException {
+        byte[] block = readBlock(reader, reader.defBlockOffset, reader.defBlockLength);
+        if (reader.defOffset + reader.defLength > reader.blockLength) {
+            throw new IOException("Definition past the end of block " + reader.defBlockOffset);
+        }
+        byte[] def = new byte[reader.defLength];
+        System.arraycopy(block, reader.defOffset, def, 0, def.length);
+        return def;
+    }
+
+    /**
+     * @return the inflated block, in the buffer of reader, which keeps the last one, or from the block cache; its
+     * length is left in reader.blockLength.
+     */
+    private byte[] readBlock(Reader reader, int offset, int length) throws IOException {
+        if (reader.blockOffset == offset) {
+            return reader.block;
+        }
+        if (blocks != null) {
+            byte[] cached = blocks.get(offset);
+            if (cached != null) {
+                // blockLength now tells the length of the cached block, not of the one in the buffer
+                reader.blockOffset = -1;
+                reader.blockLength = cached.length;
+                return cached;
+            }
+        }
+        reader.blockOffset = -1;
+        if (length > reader.compressed.length) {
+            reader.compressed = new byte[Math.max(length, reader.compressed.length * 2)];
+        }
+        ByteBuffer view = reader.view;
+        int at = blocksOffset + offset;
+        if (at < 0 || (long) at + length + 4 > archive.capacity()) {
+            throw new IOException("Corrupt block at " + offset);
+        }
+        view.position(at);
+        view.get(reader.compressed, 0, length);
+        // the block is followed by its CRC32
+        reader.crc.reset();
+        reader.crc.update(reader.compressed, 0, length);
+        if ((int) reader.crc.getValue() != view.getInt()) {
+            throw new IOException("Corrupt block at " + offset);
+        }
+        Inflater inflater = reader.inflater;
+        inflater.reset();
+        if (presetDictionary.length > 0) {
+            inflater.setDictionary(presetDictionary);
+        }
+        inflater.setInput(reader.compressed, 0, length);
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                if (n == reader.block.length) {
+                    byte[] block = new byte[reader.block.length * 2];
+                    System.arraycopy(reader.block, 0, block, 0, n);
+                    reader.block = block;
+                }
+                int inflated = inflater.inflate(reader.block, n, reader.block.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated block at " + offset);
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block at " + offset, e);
+        }
+        reader.blockOffset = offset;
+        reader.blockLength = n;
+        if (blocks != null) {
+            blocks.put(offset, Arrays.copyOf(reader.block, n), n);
+        }
+        return reader.block;
+    }
+
+    /**
+     * Puts the key of word into the query buffer of reader, without allocating when word is ASCII.
+     *
+     * @return the length of the key.
+     */
+    private int queryKey(Reader reader, String word) {
+        int n = word.length();
+        boolean ascii = true;
+        for (int i = 0; i < n && ascii; i++) {
+            ascii = word.charAt(i) < 0x80;
+        }
+        byte[] key = ascii ? null : sortKey(word);
+        int length = ascii ? n : key.length;
+        if (length > reader.query.length) {
+            reader.query = new byte[Math.max(length, reader.query.length * 2)];
+        }
+        if (!ascii) {
+            System.arraycopy(key, 0, reader.query, 0, length);
+            return length;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = word.charAt(i);
+            reader.query[i] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        return n;
+    }
+
+    /**
+     * The key the converter builds for a headword: folded to lower case and encoded as UTF-8.
+     */
+    private static byte[] sortKey(String word) {
+        return fold(word).getBytes(UTF_8);
+    }
+
+    /**
+     * Folds word to lower case as the converter does for the keys: the capitals of ASCII, Latin-1, Latin Extended-A,
+     * Greek and Cyrillic become small letters, everything else stays, whatever the default locale.
+     */
+    public static String fold(String word) {
+        char[] chars = null;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i), lower = fold(c);
+            if (lower != c) {
+                if (chars == null) {
+                    chars = word.toCharArray();
+                }
+                chars[i] = lower;
+            }
+        }
+        return chars == null ? word : new String(chars);
+    }
+
+    private static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + 0x20) : c;
+        }
+        if (c < 0x100) {
+            return c >= 0xc0 && c <= 0xde && c != 0xd7 ? (char) (c + 0x20) : c;
+        }
+        if (c < 0x180) {
+            // capitals come before their small letters, on even code points but in two runs; dotted I, dotless i,
+            // kra, n with apostrophe and long s have no pair
+            if (c == 0x130 || c == 0x131 || c == 0x138 || c == 0x149 || c == 0x17f) {
+                return c;
+            }
+            if (c == 0x178) {
+                return 0xff;
+            }
+            boolean odd = c >= 0x139 && c <= 0x148 || c >= 0x179;
+            return (c & 1) == (odd ? 1 : 0) ? (char) (c + 1) : c;
+        }
+        if (c >= 0x386 && c <= 0x3ab) {
+            if (c == 0x386) {
+                return 0x3ac;
+            }
+            if (c >= 0x388 && c <= 0x38a) {
+                return (char) (c + 0x25);
+            }
+            if (c == 0x38c) {
+                return 0x3cc;
+            }
+            if (c == 0x38e || c == 0x38f) {
+                return (char) (c + 0x3f);
+            }
+            return c >= 0x391 && c != 0x3a2 ? (char) (c + 0x20) : c;
+        }
+        if (c >= 0x400 && c <= 0x52f) {
+            if (c < 0x410) {
+                return (char) (c + 0x50);
+            }
+            if (c < 0x430) {
+                return (char) (c + 0x20);
+            }
+            if (c == 0x4c0) {
+                return 0x4cf;
+            }
+            if (c >= 0x4c1 && c <= 0x4ce) {
+                return (c & 1) == 1 ? (char) (c + 1) : c;
+            }
+            if (c >= 0x460 && c <= 0x481 || c >= 0x48a && c <= 0x4bf || c >= 0x4d0) {
+                return (c & 1) == 0 ? (char) (c + 1) : c;
+            }
+        }
+        return c;
+    }
+
+    private ByteBuffer slice(int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || (long) offset + length > archive.capacity()) {
+            throw new IOException("Corrupt dictionary: " + length + " B at " + offset);
+        }
+        ByteBuffer slice = archive.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    private static int compareKeys(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; i++) {
+            int c = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0, shift = 0, b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void skipVarInts(ByteBuffer in, int n) {
+        while (n > 0) {
+            if ((in.get() & 0x80) == 0) {
+                n--;
+            }
+        }
+    }
+}
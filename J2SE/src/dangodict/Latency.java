@@ -0,0 +1,88 @@
+package dangodict;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and a histogram of how long calls took, in microseconds, for any number of threads. The buckets are a
+ * quarter of a power of two wide, so percentiles are off by at most a quarter.
+ */
+final class Latency {
+    private static final int BUCKETS = 4 * 40;
+    private final LongAdder count = new LongAdder(), errors = new LongAdder(), total = new LongAdder();
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    Latency() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param start the System.nanoTime() the call started at.
+     */
+    void record(long start, boolean failed) {
+        long micros = Math.max((System.nanoTime() - start) / 1000, 0);
+        count.increment();
+        total.add(micros);
+        if (failed) {
+            errors.increment();
+        }
+        buckets[bucket(micros)].increment();
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the mean in microseconds, 0 before the first call.
+     */
+    long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+
+    /**
+     * @param fraction for example 0.99 for the 99th percentile.
+     * @return the upper bound of the bucket the percentile falls in, in microseconds, 0 before the first call.
+     */
+    long getPercentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        for (int i = 0; i < BUCKETS; i++) {
+            rank -= counts[i];
+            if (rank <= 0 && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Below 4 µs one bucket per microsecond, above that four per power of two.
+     */
+    private static int bucket(long micros) {
+        if (micros < 4) {
+            return (int) micros;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(micros);
+        return Math.min(4 * e + (int) (micros >>> (e - 2) & 3), BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int e = bucket / 4;
+        return ((5L + bucket % 4) << (e - 2)) - 1;
+    }
+}
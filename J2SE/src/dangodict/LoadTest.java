@@ -0,0 +1,268 @@
+package dangodict;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps a LookupServer busy with random words for a while and prints how many requests it answered per second and
+ * how long they took, as seen by the client.
+ *
+ * Every client is a virtual thread sending one request at a time over a kept alive connection of its own. The client
+ * speaks just enough HTTP/1.1 for the answers of LookupServer, which always come with a length; a full client such as
+ * java.net.http takes several times the processor time of the server per request and would measure itself instead.
+ *
+ * The words come from a file, one per line and anything after a tab ignored, or else from the headwords the server
+ * has for each letter. Configured with system properties: dd.endpoint (lookup, prefix or batch), dd.clients
+ * (concurrent requests, 64), dd.seconds (10, after 2 of warm up) and dd.batch (words per batch, 100).
+ */
+public final class LoadTest {
+    private final String host;
+    private final int port;
+    private final String path;
+
+    /**
+     * A connection to the server, opened again when the server closes it.
+     */
+    private final class Connection {
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private final StringBuilder line = new StringBuilder();
+
+        /**
+         * @return the status of the answer to a GET of target, or of a POST of body if that is not null.
+         */
+        int send(String target, byte[] body, OutputStream answer) throws IOException {
+            if (socket != null) {
+                try {
+                    return attempt(target, body, answer);
+                } catch (EOFException e) {
+                    // the server closed the connection while it was idle, as it may; open another
+                }
+            }
+            return attempt(target, body, answer);
+        }
+
+        private int attempt(String target, byte[] body, OutputStream answer) throws IOException {
+            if (socket == null) {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new BufferedInputStream(socket.getInputStream());
+            }
+            try {
+                StringBuilder request = new StringBuilder(body == null ? "GET " : "POST ");
+                request.append(path).append(target).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+                if (body != null) {
+                    request.append("Content-Type: text/plain; charset=utf-8\r\nContent-Length: ")
+                            .append(body.length).append("\r\n");
+                }
+                out.write(request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+                if (body != null) {
+                    out.write(body);
+                }
+                out.flush();
+                int status = Integer.parseInt(readLine().split(" ")[1]);
+                int length = 0;
+                boolean close = false;
+                for (String header; !(header = readLine()).isEmpty(); ) {
+                    int colon = header.indexOf(':');
+                    String name = colon < 0 ? header : header.substring(0, colon).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        length = Integer.parseInt(header.substring(colon + 1).trim());
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        close = header.substring(colon + 1).trim().equalsIgnoreCase("close");
+                    }
+                }
+                byte[] buffer = new byte[8 * 1024];
+                while (length > 0) {
+                    int n = in.read(buffer, 0, Math.min(length, buffer.length));
+                    if (n < 0) {
+                        throw new EOFException("Answer cut short");
+                    }
+                    if (answer != null) {
+                        answer.write(buffer, 0, n);
+                    }
+                    length -= n;
+                }
+                if (close) {
+                    close();
+                }
+                return status;
+            } catch (IOException e) {
+                close();
+                throw e;
+            } catch (RuntimeException e) {
+                close();
+                throw new IOException("Bad answer", e);
+            }
+        }
+
+        private String readLine() throws IOException {
+            line.setLength(0);
+            for (int b; (b = in.read()) != '\n'; ) {
+                if (b < 0) {
+                    throw new EOFException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private LoadTest(URI base) {
+        host = base.getHost();
+        port = base.getPort() < 0 ? 80 : base.getPort();
+        path = base.getRawPath() == null || base.getRawPath().isEmpty() ? "/"
+                : base.getRawPath().endsWith("/") ? base.getRawPath() : base.getRawPath() + "/";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: java -Ddd.clients=64 dangodict.LoadTest http://127.0.0.1:8080/ [words.txt]");
+            System.exit(1);
+        }
+        LoadTest test = new LoadTest(URI.create(args[0]));
+        String endpoint = System.getProperty("dd.endpoint", "lookup");
+        int clients = Integer.getInteger("dd.clients", 64);
+        int seconds = Integer.getInteger("dd.seconds", 10);
+        int batch = Integer.getInteger("dd.batch", 100);
+        List<String> words = args.length > 1 ? readWords(args[1]) : test.fetchWords();
+        if (words.isEmpty()) {
+            System.err.println("No words");
+            System.exit(1);
+        }
+        System.out.println(words.size() + " words, " + clients + " clients, /" + endpoint);
+        test.run(endpoint, words, clients, batch, 2);
+        Latency latency = test.run(endpoint, words, clients, batch, seconds);
+        long n = latency.getCount();
+        System.out.printf("%d requests, %d failed, %.0f/s%s%n", n, latency.getErrors(), (double) n / seconds,
+                "batch".equals(endpoint) ? String.format(", %.0f words/s", (double) n * batch / seconds) : "");
+        System.out.printf("latency in microseconds: mean %d, p50 %d, p90 %d, p99 %d, p99.9 %d%n", latency.getMean(),
+                latency.getPercentile(0.5), latency.getPercentile(0.9), latency.getPercentile(0.99),
+                latency.getPercentile(0.999));
+    }
+
+    /**
+     * Sends requests from clients virtual threads, each waiting for its answer before the next, for seconds.
+     */
+    private Latency run(final String endpoint, final List<String> words, int clients, final int batch, int seconds)
+            throws InterruptedException {
+        final Latency latency = new Latency();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            final Random random = new Random(i);
+            threads.add(Thread.ofVirtual().start(new Runnable() {
+                @Override
+                public void run() {
+                    Connection connection = new Connection();
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        boolean failed = true;
+                        try {
+                            failed = send(connection, endpoint, words, random, batch) >= 500;
+                        } catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            latency.record(start, failed);
+                        }
+                    }
+                    connection.close();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            System.err.println("First failure: " + failure.get());
+        }
+        return latency;
+    }
+
+    /**
+     * Sends one request with random words.
+     *
+     * @return the status of the answer.
+     */
+    private static int send(Connection connection, String endpoint, List<String> words, Random random, int batch)
+            throws IOException {
+        if ("batch".equals(endpoint)) {
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < batch; i++) {
+                body.append(words.get(random.nextInt(words.size()))).append('\n');
+            }
+            return connection.send("batch", body.toString().getBytes(StandardCharsets.UTF_8), null);
+        }
+        String word = words.get(random.nextInt(words.size()));
+        if ("prefix".equals(endpoint)) {
+            word = word.substring(0, Math.min(word.length(), 1 + random.nextInt(3)));
+        }
+        return connection.send(endpoint + "?q=" + URLEncoder.encode(word, StandardCharsets.UTF_8), null, null);
+    }
+
+    private static List<String> readWords(String file) throws IOException {
+        List<String> words = new ArrayList<String>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            String word = tab < 0 ? line : line.substring(0, tab);
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return up to a thousand headwords for each letter, taken from the answers of /prefix.
+     */
+    private List<String> fetchWords() throws IOException {
+        List<String> words = new ArrayList<String>();
+        Connection connection = new Connection();
+        for (char c = 'a'; c <= 'z'; c++) {
+            ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            connection.send("prefix?n=1000&q=" + c, null, answer);
+            String json = new String(answer.toByteArray(), StandardCharsets.UTF_8);
+            // the words are the strings after "words":[, none of which hold quotes or commas in plain headwords
+            int at = json.indexOf("\"words\":[");
+            for (String word : json.substring(at + 9, json.lastIndexOf(']')).split(",")) {
+                if (word.length() > 2 && word.startsWith("\"") && word.endsWith("\"") && word.indexOf('\\') < 0) {
+                    words.add(word.substring(1, word.length() - 1));
+                }
+            }
+        }
+        connection.close();
+        return words;
+    }
+}
@@ -0,0 +1,475 @@
+package dangodict;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Looks words up in dictionary archives for other programs on the same machine, over HTTP:
+ *
+ * <pre>
+ * GET  /lookup?q=word[&amp;format=html]         the definitions of word in every dictionary that has it, 404 if none
+ * GET  /prefix?q=prefix[&amp;n=20][&amp;after=word] headwords starting with prefix, in key order
+ * GET  /batch?q=word&amp;q=word...               the definitions of each word, as /lookup
+ * POST /batch                                one word per line in the UTF-8 body
+ * GET  /metrics                              requests, errors, latencies and cache hit rates
+ * </pre>
+ *
+ * Answers are JSON, or html with format=html, the definitions of several dictionaries each under the name of its
+ * dictionary as the midlet shows them. Dictionaries are asked in the order they are given on the command line.
+ *
+ * Every request runs on a virtual thread of its own, which the JDK parks instead of blocking a carrier thread while
+ * it waits for the network, so slow clients cost a little memory each and not a thread. The archives are read with
+ * pooled readers and share two caches: inflated blocks per dictionary and the definitions of the words asked for
+ * last across all of them, weighed in bytes. Needs Java 21; the archive reader itself runs on Java 8.
+ *
+ * Configured like the converter, with system properties: dd.host (the loopback address by default), dd.port (8080),
+ * dd.blockCache and dd.definitionCache (MB, 32 and 64).
+ */
+public final class LookupServer {
+    private static final int MAX_BATCH = 1000;
+    private static final int MAX_PREFIX = 1000;
+    // bytes of a cached answer besides its definitions
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final byte[][] NOT_FOUND = new byte[0][];
+
+    private final Dictionary[] dicts;
+    // the definitions of a folded word in each dictionary, NOT_FOUND if none has it
+    private final LruCache<String, byte[][]> definitions;
+    private final Latency lookups = new Latency(), prefixes = new Latency(), batches = new Latency();
+    private final long started = System.currentTimeMillis();
+
+    public LookupServer(Dictionary[] dicts, int definitionCacheSize) {
+        this.dicts = dicts;
+        definitions = new LruCache<String, byte[][]>(definitionCacheSize);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java -Ddd.port=8080 dangodict.LookupServer 1.dda [2.dda ...]");
+            System.exit(1);
+        }
+        int blockCache = Integer.getInteger("dd.blockCache", 32) << 20;
+        int definitionCache = Integer.getInteger("dd.definitionCache", 64) << 20;
+        Dictionary[] dicts = new Dictionary[args.length];
+        for (int i = 0; i < args.length; i++) {
+            dicts[i] = Dictionary.open(Paths.get(args[i]), blockCache / args.length);
+            System.out.println(dicts[i].getName() + ": " + dicts[i].size() + " words");
+        }
+        // the server writes the headers and the body of an answer separately, which with Nagle's algorithm waits for
+        // the delayed acknowledgement of the client, some 40 ms, before the body goes out
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        // past 200 idle connections by default the server closes those of clients waiting to send again
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+        }
+        String host = System.getProperty("dd.host");
+        InetSocketAddress address = new InetSocketAddress(
+                host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host),
+                Integer.getInteger("dd.port", 8080));
+        HttpServer server = new LookupServer(dicts, definitionCache).start(address);
+        System.out.println("Listening on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Starts serving on address, with a virtual thread for every request.
+     */
+    public HttpServer start(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 1024);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/lookup", new Handler(lookups) {
+            @Override
+            void handle(HttpExchange exchange, List<String> words, boolean html) throws IOException {
+                String word = single(words);
+                byte[][] found = lookup(word);
+                if (html) {
+                    send(exchange, found == NOT_FOUND ? 404 : 200, "text/html", html(found));
+                } else {
+                    StringBuilder json = new StringBuilder();
+                    send(exchange, found == NOT_FOUND ? 404 : 200, "application/json",
+                            json(json, word, found).toString());
+                }
+            }
+        });
+        server.createContext("/prefix", new Handler(prefixes) {
+            @Override
+            void handle(HttpExchange exchange, List<String> words, boolean html) throws IOException {
+                String prefix = single(words);
+                String query = exchange.getRequestURI().getRawQuery();
+                String n = parameter(query, "n");
+                List<String> found = prefix(prefix, parameter(query, "after"),
+                        n == null ? 20 : Math.max(0, Math.min(Integer.parseInt(n), MAX_PREFIX)));
+                StringBuilder out = new StringBuilder();
+                if (html) {
+                    out.append("<html><body><ul>");
+                    for (String word : found) {
+                        escapeHtml(out.append("<li>"), word).append("</li>");
+                    }
+                    send(exchange, 200, "text/html", out.append("</ul></body></html>").toString());
+                } else {
+                    escapeJson(out.append("{\"prefix\":"), prefix).append(",\"words\":[");
+                    for (int i = 0; i < found.size(); i++) {
+                        escapeJson(out.append(i == 0 ? "" : ","), found.get(i));
+                    }
+                    send(exchange, 200, "application/json", out.append("]}").toString());
+                }
+            }
+        });
+        server.createContext("/batch", new Handler(batches) {
+            @Override
+            void handle(HttpExchange exchange, List<String> words, boolean html) throws IOException {
+                if (words.isEmpty()) {
+                    throw new IllegalArgumentException("No words");
+                }
+                if (words.size() > MAX_BATCH) {
+                    throw new IllegalArgumentException("More than " + MAX_BATCH + " words");
+                }
+                StringBuilder out = new StringBuilder(html ? "<html><body>" : "{\"results\":[");
+                for (int i = 0; i < words.size(); i++) {
+                    byte[][] found = lookup(words.get(i));
+                    if (html) {
+                        escapeHtml(out.append("<h3>"), words.get(i)).append("</h3>");
+                        out.append(found == NOT_FOUND ? "<p>Not found</p>" : body(html(found)));
+                    } else {
+                        json(out.append(i == 0 ? "" : ","), words.get(i), found);
+                    }
+                }
+                send(exchange, 200, html ? "text/html" : "application/json",
+                        out.append(html ? "</body></html>" : "]}").toString());
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    send(exchange, 200, "application/json", metrics());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return the definitions of word in each dictionary, null for those without it, or NOT_FOUND if none has it.
+     */
+    byte[][] lookup(String word) throws IOException {
+        String key = Dictionary.fold(word);
+        byte[][] found = definitions.get(key);
+        if (found != null) {
+            return found;
+        }
+        found = new byte[dicts.length][];
+        int weight = ENTRY_OVERHEAD + 2 * key.length(), n = 0;
+        for (int i = 0; i < dicts.length; i++) {
+            found[i] = dicts[i].lookup(key);
+            if (found[i] != null) {
+                weight += found[i].length;
+                n++;
+            }
+        }
+        if (n == 0) {
+            found = NOT_FOUND;
+        }
+        definitions.put(key, found, weight);
+        return found;
+    }
+
+    /**
+     * @return up to n headwords of all dictionaries starting with prefix and past after, in key order, each once.
+     */
+    List<String> prefix(String prefix, String after, int n) throws IOException {
+        // the headwords come folded, so their UTF-8 order is the key order
+        TreeSet<String> merged = new TreeSet<String>(new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return compareUtf8(a, b);
+            }
+        });
+        for (Dictionary dict : dicts) {
+            for (String word : dict.range(prefix, after, n)) {
+                merged.add(word);
+                if (merged.size() > n) {
+                    merged.pollLast();
+                }
+            }
+        }
+        return new ArrayList<String>(merged);
+    }
+
+    /**
+     * @return the definitions in found put together, each under the name of its dictionary if there are several.
+     */
+    private String html(byte[][] found) {
+        if (found == NOT_FOUND) {
+            return "<html><body><p>Not found</p></body></html>";
+        }
+        byte[] only = null;
+        int n = 0;
+        for (byte[] def : found) {
+            if (def != null) {
+                only = def;
+                n++;
+            }
+        }
+        if (n == 1) {
+            return new String(only, StandardCharsets.UTF_8);
+        }
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] != null) {
+                escapeHtml(html.append("<h4>"), dicts[i].getName()).append("</h4>");
+                html.append(body(new String(found[i], StandardCharsets.UTF_8)));
+            }
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    /**
+     * Appends {"word":..,"found":..,"definitions":[{"dictionary":..,"html":..},..]}.
+     */
+    private StringBuilder json(StringBuilder out, String word, byte[][] found) {
+        escapeJson(out.append("{\"word\":"), word).append(",\"found\":").append(found != NOT_FOUND);
+        out.append(",\"definitions\":[");
+        boolean first = true;
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] != null) {
+                escapeJson(out.append(first ? "" : ",").append("{\"dictionary\":"), dicts[i].getName());
+                escapeJson(out.append(",\"html\":"), new String(found[i], StandardCharsets.UTF_8)).append('}');
+                first = false;
+            }
+        }
+        return out.append("]}");
+    }
+
+    private String metrics() {
+        StringBuilder out = new StringBuilder("{\"uptime\":").append(System.currentTimeMillis() - started);
+        metrics(out.append(",\"lookup\":"), lookups);
+        metrics(out.append(",\"prefix\":"), prefixes);
+        metrics(out.append(",\"batch\":"), batches);
+        metrics(out.append(",\"definitionCache\":"), definitions);
+        out.append(",\"blockCache\":[");
+        for (int i = 0; i < dicts.length; i++) {
+            escapeJson(out.append(i == 0 ? "{\"dictionary\":" : ",{\"dictionary\":"), dicts[i].getName());
+            LruCache<Integer, byte[]> blocks = dicts[i].getBlockCache();
+            if (blocks != null) {
+                metrics(out.append(",\"cache\":"), blocks);
+            }
+            out.append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    private static void metrics(StringBuilder out, Latency latency) {
+        out.append("{\"requests\":").append(latency.getCount());
+        out.append(",\"errors\":").append(latency.getErrors());
+        out.append(",\"meanMicros\":").append(latency.getMean());
+        out.append(",\"p50Micros\":").append(latency.getPercentile(0.50));
+        out.append(",\"p90Micros\":").append(latency.getPercentile(0.90));
+        out.append(",\"p99Micros\":").append(latency.getPercentile(0.99));
+        out.append(",\"p999Micros\":").append(latency.getPercentile(0.999)).append('}');
+    }
+
+    private static void metrics(StringBuilder out, LruCache<?, ?> cache) {
+        long hits = cache.getHits(), misses = cache.getMisses();
+        out.append("{\"hits\":").append(hits).append(",\"misses\":").append(misses);
+        out.append(",\"hitRate\":").append(hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        out.append(",\"bytes\":").append(cache.getUsed()).append('}');
+    }
+
+    /**
+     * Parses the words of a request, times it and answers 400 for bad requests and 500 for failures.
+     */
+    private abstract static class Handler implements HttpHandler {
+        private final Latency latency;
+
+        Handler(Latency latency) {
+            this.latency = latency;
+        }
+
+        abstract void handle(HttpExchange exchange, List<String> words, boolean html) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                String query = exchange.getRequestURI().getRawQuery();
+                List<String> words = parameters(query, "q");
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    for (String line : new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8)
+                            .split("\r?\n")) {
+                        if (!line.isEmpty()) {
+                            words.add(line);
+                        }
+                    }
+                } else if (!"GET".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, "text/plain", "GET or POST only");
+                    return;
+                }
+                handle(exchange, words, "html".equals(parameter(query, "format")));
+                failed = false;
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, "text/plain", String.valueOf(e.getMessage()));
+            } catch (IOException e) {
+                send(exchange, 500, "text/plain", String.valueOf(e.getMessage()));
+            } catch (RuntimeException e) {
+                // a bug rather than a bad archive, keep the trace
+                e.printStackTrace();
+                send(exchange, 500, "text/plain", e.toString());
+            } finally {
+                exchange.close();
+                latency.record(start, failed);
+            }
+        }
+    }
+
+    private static String single(List<String> words) {
+        if (words.size() != 1) {
+            throw new IllegalArgumentException("Give one q");
+        }
+        return words.get(0);
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * @return the first value of name in a raw query string, null if it has none.
+     */
+    private static String parameter(String query, String name) {
+        List<String> values = parameters(query, name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private static List<String> parameters(String query, String name) {
+        List<String> values = new ArrayList<String>();
+        if (query == null) {
+            return values;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq == name.length() && pair.startsWith(name)) {
+                values.add(URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+            if (out.size() > 64 * MAX_BATCH) {
+                throw new IllegalArgumentException("Request too large");
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return what is between the body tags of an html definition, or all of it if it has none.
+     */
+    private static String body(String html) {
+        int start = html.indexOf("<body>"), end = html.lastIndexOf("</body>");
+        if (start < 0 || end < start) {
+            return html;
+        }
+        return html.substring(start + 6, end);
+    }
+
+    private static StringBuilder escapeJson(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+
+    private static StringBuilder escapeHtml(StringBuilder out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        return out;
+    }
+
+    private static int compareUtf8(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8), y = b.getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(x.length, y.length);
+        for (int i = 0; i < n; i++) {
+            int c = (x[i] & 0xff) - (y[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return x.length - y.length;
+    }
+}
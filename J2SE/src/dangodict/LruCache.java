@@ -0,0 +1,125 @@
+package dangodict;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Values kept up to a budget of their total weight, dropping the least recently used first, for any number of
+ * threads. The keys are spread over segments that each have their own lock, budget and order, so threads mostly do
+ * not wait for each other and the least recently used entry is only that within its segment.
+ */
+public final class LruCache<K, V> {
+    private static final int SEGMENTS = 16;
+    private final Segment<K, V>[] segments;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    private static final class Segment<K, V> {
+        private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        private final long budget;
+        private long used;
+
+        private Segment(long budget) {
+            this.budget = budget;
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final int weight;
+
+        private Entry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param budget the total weight of the values kept, in whatever unit put() is given, usually bytes.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LruCache(long budget) {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<K, V>(budget / SEGMENTS);
+        }
+    }
+
+    /**
+     * @return the value of key, null if it is not kept.
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segment(key);
+        Entry<V> entry;
+        synchronized (segment) {
+            entry = segment.map.get(key);
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Keeps value under key unless it weighs more than a segment may hold, dropping the least recently used values
+     * of its segment until it fits.
+     */
+    public void put(K key, V value, int weight) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            if (weight > segment.budget) {
+                return;
+            }
+            Entry<V> old = segment.map.put(key, new Entry<V>(value, weight));
+            segment.used += weight - (old == null ? 0 : old.weight);
+            Iterator<Map.Entry<K, Entry<V>>> eldest = segment.map.entrySet().iterator();
+            while (segment.used > segment.budget && eldest.hasNext()) {
+                Map.Entry<K, Entry<V>> e = eldest.next();
+                if (e.getKey().equals(key)) {
+                    continue;
+                }
+                segment.used -= e.getValue().weight;
+                eldest.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.map.clear();
+                segment.used = 0;
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the total weight of the values kept.
+     */
+    public long getUsed() {
+        long used = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                used += segment.used;
+            }
+        }
+        return used;
+    }
+
+    private Segment<K, V> segment(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h * 0x9e3779b9 >>> 28) & (SEGMENTS - 1)];
+    }
+}
@@ -0,0 +1,519 @@
+package dangodict;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Runs the converter over a small Lingoes dictionary made up on the spot and checks that both readers of the archive
+ * answer what a plain scan of the same entries does: lookup and range here, and lookup, complete, fuzzy, match and
+ * search on the device Dictionary. It also checks that the converter and both readers fold every char alike, and as the
+ * table of folds expects, since a reader that folds differently misses keys without any error.
+ *
+ * The converter runs in a JVM of its own with the class path of this one, and the device classes are loaded again
+ * with the archive on their class path, as the jar has it. So compile everything into one place first:
+ * <pre>
+ * javac -encoding UTF-8 -d classes J2ME/LingoesLd2Reader.java J2ME/src/Dictionary.java J2ME/src/ArchiveReader.java \
+ *     J2ME/src/BlockInflater.java J2ME/src/IndexPage.java J2ME/src/LruCache.java J2ME/src/KeyAutomaton.java \
+ *     J2SE/src/dangodict/Dictionary.java J2SE/src/dangodict/LruCache.java J2SE/test/dangodict/RoundTripTest.java
+ * java -cp classes dangodict.RoundTripTest
+ * </pre>
+ * It prints the failed checks and exits with 1 if there are any, keeping its scratch directory to look into.
+ */
+public final class RoundTripTest {
+    // small pages and blocks, so that even a few thousand entries span many of them
+    private static final String[] OPTIONS = { "-Ddd.pageSize=1024", "-Ddd.blockSize=2048", "-Ddd.restartInterval=4" };
+    private static final String[] VOCABULARY = { "river", "stone", "light", "quick", "bread", "north", "green",
+            "silver", "window", "garden", "winter", "market", "letter", "number", "paper", "music", "animal", "mirror",
+            "bridge", "candle" };
+    private static final String[] PHRASES = { "中文词典", "一个词", "词典里的字" };
+    // what the fold rule gives, one row per range it covers and one for what it leaves alone; all three copies of
+    // the rule must give exactly this
+    private static final String[][] FOLDS = { { "RIVER Stone", "river stone" },
+            { "ÀÉÎÕÜÞ ×÷ß", "àéîõüþ ×÷ß" }, { "ĀĂĄ ĹĽŁ ŹŻŽ Ÿ", "āăą ĺľł źżž ÿ" },
+            { "ΆΈΉΊΌΎΏ ΑΘΗΝΑ ΣΟΦΙΑ", "άέήίόύώ αθηνα σοφια" }, { "ЁЛКА Ѓ Ѐ ѢѠ Ґ Ӂ Ӏ Ԯ", "ёлка ѓ ѐ ѣѡ ґ ӂ ӏ ԯ" },
+            // dotted I, dotless i, kra, n with apostrophe, long s, B with hook, Dz with caron, ohm, fullwidth A
+            { "\u0130\u0131\u0138\u0149\u017f\u0181\u01c5\u2126\uff21 中文词典",
+                    "\u0130\u0131\u0138\u0149\u017f\u0181\u01c5\u2126\uff21 中文词典" } };
+    private int checks, failures;
+
+    /**
+     * The device Dictionary, called through reflection since it lives in the default package.
+     */
+    private static final class Device {
+        private final Object dict;
+        private final Method lookup, complete, fuzzy, match, search, fold;
+
+        Device(Path archive) throws Exception {
+            List<URL> urls = new ArrayList<URL>();
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                urls.add(Paths.get(entry).toUri().toURL());
+            }
+            urls.add(archive.getParent().toUri().toURL());
+            // no parent, so that the device classes are loaded here and find the archive as a resource
+            Class<?> c = Class.forName("Dictionary", true, new URLClassLoader(urls.toArray(new URL[0]), null));
+            String pack = archive.getFileName().toString().replaceFirst("\\.dda$", "");
+            dict = c.getConstructor(String.class, int.class).newInstance(pack, 64 * 1024);
+            lookup = c.getMethod("lookup", String.class);
+            complete = c.getMethod("complete", String.class, String.class, String[].class);
+            fuzzy = c.getMethod("fuzzy", String.class, int.class, String[].class);
+            match = c.getMethod("match", String.class, String[].class);
+            search = c.getMethod("search", String.class, boolean.class, String[].class);
+            fold = c.getDeclaredMethod("fold", String.class);
+            fold.setAccessible(true);
+        }
+
+        byte[] lookup(String word) throws Exception {
+            return (byte[]) call(lookup, word);
+        }
+
+        int complete(String prefix, String after, String[] words) throws Exception {
+            return (Integer) call(complete, prefix, after, words);
+        }
+
+        List<String> fuzzy(String word, int maxDistance, int n) throws Exception {
+            String[] words = new String[n];
+            return Arrays.asList(words).subList(0, (Integer) call(fuzzy, word, maxDistance, words));
+        }
+
+        List<String> match(String pattern, int n) throws Exception {
+            String[] words = new String[n];
+            return Arrays.asList(words).subList(0, (Integer) call(match, pattern, words));
+        }
+
+        List<String> search(String query, int n) throws Exception {
+            String[] words = new String[n];
+            return Arrays.asList(words).subList(0, (Integer) call(search, query, true, words));
+        }
+
+        String fold(String word) throws Exception {
+            return (String) call(fold, word);
+        }
+
+        private Object call(Method method, Object... args) throws Exception {
+            try {
+                return method.invoke(dict, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RoundTripTest test = new RoundTripTest();
+        Path dir = Files.createTempDirectory("dangodict");
+        test.run(dir);
+        System.out.println(test.checks + " checks, " + test.failures + " failed");
+        if (test.failures > 0) {
+            System.out.println("Kept " + dir);
+            System.exit(1);
+        }
+        delete(dir.toFile());
+    }
+
+    private void run(Path dir) throws Exception {
+        Map<String, String[]> entries = entries();
+        Path ld2 = dir.resolve("test.ld2");
+        Path archive = dir.resolve("roundtrip.dda");
+        writeLd2(ld2, entries.values());
+        convert(ld2, archive, dir.resolve("convert.log"));
+        Path sorted = dir.resolve("sorted").resolve("roundtrip.dda");
+        Files.createDirectories(sorted.getParent());
+        convert(ld2, sorted, dir.resolve("sorted.log"), "-Ddd.runSize=500", "-Ddd.fuzzyDistance=1",
+                "-Ddd.textIndex=true", "-Ddd.patternIndex=true");
+        check(Arrays.equals(Files.readAllBytes(archive), Files.readAllBytes(sorted)),
+                "the external sort writes the same archive");
+        Device device = new Device(archive);
+        // unless asked for, the external sort leaves out the indexes that grow in memory
+        Path bounded = dir.resolve("bounded").resolve("roundtrip.dda");
+        Files.createDirectories(bounded.getParent());
+        convert(ld2, bounded, dir.resolve("bounded.log"), "-Ddd.runSize=500");
+        Device lean = new Device(bounded);
+        check(!device.fuzzy("ångstöm", 1, 8).isEmpty() && lean.fuzzy("ångstöm", 1, 8).isEmpty(),
+                "no fuzzy index with dd.runSize");
+        check(!device.search("river", 8).isEmpty() && lean.search("river", 8).isEmpty(),
+                "no text index with dd.runSize");
+        check(!device.match("st*", 8).isEmpty() && lean.match("st*", 8).isEmpty(), "no automata with dd.runSize");
+        checkFold(device);
+        TreeSet<String> keys = new TreeSet<String>(entries.keySet());
+        try (Dictionary dict = Dictionary.open(archive)) {
+            check(dict.size() == entries.size(), "size " + dict.size());
+            checkLookup(dict, device, entries);
+            Set<String> prefixes = new TreeSet<String>();
+            for (String key : keys) {
+                prefixes.add(key.substring(0, 1));
+                prefixes.add(key.substring(0, Math.min(2, key.length())));
+            }
+            prefixes.addAll(Arrays.asList("", "ST", "Λ", "zzz"));
+            for (String prefix : prefixes) {
+                checkRange(dict, device, keys, prefix);
+            }
+        }
+        checkFuzzy(device, keys);
+        for (String pattern : new String[] { "st*", "*ing", "*tion", "?a*", "b?t", "*ou*", "λ*", "*а", "中*", "q*" }) {
+            checkMatch(device, keys, pattern);
+        }
+        for (String query : new String[] { "river", "Stone river", "词典", "ΛΌΓΟΣ", "nosuchterm" }) {
+            checkSearch(device, entries, query);
+        }
+    }
+
+    /**
+     * @return headword and definition by key: made up words of a few syllables, some capitalized, some sharing their
+     * definition with the one before, and a few in other scripts.
+     */
+    private static Map<String, String[]> entries() {
+        String[] onsets = { "b", "c", "d", "g", "l", "m", "n", "p", "r", "s", "t", "st", "tr", "ch" };
+        String[] vowels = { "a", "e", "i", "o", "u", "ai", "ou" };
+        String[] codas = { "", "", "n", "r", "s", "ng" };
+        String[] suffixes = { "", "", "", "s", "ing", "ed", "tion" };
+        Map<String, String[]> entries = new LinkedHashMap<String, String[]>();
+        for (String word : new String[] { "Ångström", "Straße", "Łódź", "Λόγος", "ΑΘΗΝΑ", "Москва", "ЁЛКА", "naïve",
+                "中文", "词典", "Œuvre", "x" }) {
+            entries.put(Dictionary.fold(word), new String[] { word, "<b>" + word + "</b> " + VOCABULARY[0] });
+        }
+        Random random = new Random(1);
+        String last = null;
+        while (entries.size() < 3000) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                word.append(onsets[random.nextInt(onsets.length)]).append(vowels[random.nextInt(vowels.length)])
+                        .append(codas[random.nextInt(codas.length)]);
+            }
+            word.append(suffixes[random.nextInt(suffixes.length)]);
+            if (random.nextInt(7) == 0) {
+                word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+            }
+            String key = Dictionary.fold(word.toString());
+            if (entries.containsKey(key)) {
+                continue;
+            }
+            String definition = last;
+            if (last == null || random.nextInt(6) != 0) {
+                StringBuilder gloss = new StringBuilder("<b>").append(word).append("</b>");
+                for (int i = 2 + random.nextInt(4); i > 0; i--) {
+                    gloss.append(' ').append(VOCABULARY[random.nextInt(VOCABULARY.length)]);
+                }
+                if (random.nextInt(5) == 0) {
+                    gloss.append(", ").append(PHRASES[random.nextInt(PHRASES.length)]);
+                }
+                definition = gloss.toString();
+            }
+            entries.put(key, new String[] { word.toString(), definition });
+            last = definition;
+        }
+        return entries;
+    }
+
+    /**
+     * Writes entries as an LD2 file with words and definitions in UTF-16LE, the definitions in CDATA so the converter
+     * keeps their html, and the data deflated in streams of 4 KB.
+     */
+    private static void writeLd2(Path file, Iterable<String[]> entries) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream(), words = new ByteArrayOutputStream(),
+                xml = new ByteArrayOutputStream();
+        int n = 0;
+        for (String[] entry : entries) {
+            writeIndex(index, words.size(), xml.size());
+            words.write(entry[0].getBytes(StandardCharsets.UTF_16LE));
+            xml.write(("<![CDATA[" + entry[1] + "]]>").getBytes(StandardCharsets.UTF_16LE));
+            n++;
+        }
+        // one more, where the last entry ends
+        writeIndex(index, words.size(), xml.size());
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        index.writeTo(inflated);
+        words.writeTo(inflated);
+        xml.writeTo(inflated);
+        byte[] data = inflated.toByteArray();
+        ByteArrayOutputStream streams = new ByteArrayOutputStream();
+        List<Integer> ends = new ArrayList<Integer>();
+        Deflater deflater = new Deflater();
+        byte[] buffer = new byte[8 * 1024];
+        for (int from = 0; from < data.length; from += 4096) {
+            deflater.reset();
+            deflater.setInput(data, from, Math.min(4096, data.length - from));
+            deflater.finish();
+            while (!deflater.finished()) {
+                streams.write(buffer, 0, deflater.deflate(buffer));
+            }
+            ends.add(streams.size());
+        }
+        deflater.end();
+        // the header, no description, the index group and then the stream ends after 8 unknown bytes and a 0
+        int indexGroup = 0x7c, streamEnds = indexGroup + 4 * n + 12, limit = streamEnds + 4 * ends.size()
+                + streams.size();
+        ByteBuffer ld2 = ByteBuffer.allocate(limit).order(ByteOrder.LITTLE_ENDIAN);
+        ld2.put("?LD2".getBytes(StandardCharsets.ISO_8859_1));
+        ld2.putShort(0x18, (short) 2).putShort(0x1a, (short) 5).putLong(0x1c, 0x5445535444494354L);
+        ld2.putInt(0x5c, 0).putInt(0x60, 3).putInt(0x64, limit - 0x68).putInt(0x68, 4 * n);
+        ld2.putInt(0x6c, index.size()).putInt(0x70, words.size()).putInt(0x74, xml.size());
+        ld2.position(streamEnds);
+        for (int end : ends) {
+            ld2.putInt(end);
+        }
+        ld2.put(streams.toByteArray());
+        Files.write(file, ld2.array());
+    }
+
+    private static void writeIndex(ByteArrayOutputStream index, int word, int xml) {
+        // word and xml offset, no flags and no references to other entries
+        index.write(ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN).putInt(word).putInt(xml).array(), 0, 10);
+    }
+
+    private static void convert(Path ld2, Path archive, Path log, String... options)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Ddd.input=" + ld2);
+        command.add("-Ddd.output=" + archive);
+        command.addAll(Arrays.asList(OPTIONS));
+        command.addAll(Arrays.asList(options));
+        command.add("LingoesLd2Reader");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        // the name it asks for
+        OutputStream in = process.getOutputStream();
+        in.write("RoundTrip\n".getBytes(StandardCharsets.UTF_8));
+        in.close();
+        if (process.waitFor() != 0 || !Files.exists(archive)) {
+            throw new IOException("The converter failed, see " + log);
+        }
+    }
+
+    private void checkFold(Device device) throws Exception {
+        Method converter = Class.forName("LingoesLd2Reader").getDeclaredMethod("fold", String.class);
+        converter.setAccessible(true);
+        int differ = 0;
+        for (int c = 0; c <= 0xffff; c++) {
+            String s = String.valueOf((char) c), folded = Dictionary.fold(s);
+            if (!folded.equals(device.fold(s)) || !folded.equals(converter.invoke(null, s))) {
+                if (differ++ == 0) {
+                    check(false, "fold of U+" + Integer.toHexString(c) + " differs");
+                }
+            }
+        }
+        check(differ == 0, differ + " chars fold differently");
+        for (String[] fold : FOLDS) {
+            check(fold[1].equals(Dictionary.fold(fold[0])), "dangodict folds " + fold[0] + " wrong");
+            check(fold[1].equals(device.fold(fold[0])), "the device folds " + fold[0] + " wrong");
+            check(fold[1].equals(converter.invoke(null, fold[0])), "the converter folds " + fold[0] + " wrong");
+        }
+    }
+
+    private void checkLookup(Dictionary dict, Device device, Map<String, String[]> entries) throws Exception {
+        for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+            String key = entry.getKey(), headword = entry.getValue()[0];
+            byte[] expected = ("<html><body>" + entry.getValue()[1] + "</body></html>").getBytes(StandardCharsets.UTF_8);
+            String upper = headword.toUpperCase(Locale.ROOT);
+            for (String word : Dictionary.fold(upper).equals(key) ? new String[] { headword, key, upper }
+                    : new String[] { headword, key }) {
+                check(Arrays.equals(dict.lookup(word), expected), "lookup " + word);
+                check(Arrays.equals(device.lookup(word), expected), "device lookup " + word);
+            }
+            if (!entries.containsKey(key + "q")) {
+                check(dict.lookup(key + "q") == null, "no " + key + "q");
+                check(device.lookup(key + "q") == null, "device no " + key + "q");
+            }
+        }
+    }
+
+    /**
+     * Pages through the headwords starting with prefix, seven at a time, and starts once more past a key sorting
+     * before the prefix, which must not move the start.
+     */
+    private void checkRange(Dictionary dict, Device device, TreeSet<String> keys, String prefix) throws Exception {
+        List<String> expected = new ArrayList<String>();
+        for (String key : keys.tailSet(Dictionary.fold(prefix))) {
+            if (!key.startsWith(Dictionary.fold(prefix))) {
+                break;
+            }
+            expected.add(key);
+        }
+        List<String> found = new ArrayList<String>(), completed = new ArrayList<String>();
+        for (List<String> page = null; page == null || page.size() == 7; found.addAll(page)) {
+            page = dict.range(prefix, found.isEmpty() ? null : found.get(found.size() - 1), 7);
+        }
+        String[] words = new String[7];
+        for (int n = 7; n == 7; ) {
+            n = device.complete(prefix, completed.isEmpty() ? null : completed.get(completed.size() - 1), words);
+            completed.addAll(Arrays.asList(words).subList(0, n));
+        }
+        check(found.equals(expected), "range " + prefix + ": " + found);
+        check(completed.equals(expected), "complete " + prefix + ": " + completed);
+        String before = keys.lower(Dictionary.fold(prefix));
+        if (before != null) {
+            List<String> first = expected.subList(0, Math.min(7, expected.size()));
+            check(dict.range(prefix, before, 7).equals(first), "range " + prefix + " past " + before);
+            int n = device.complete(prefix, before, words);
+            check(Arrays.asList(words).subList(0, n).equals(first), "complete " + prefix + " past " + before);
+        }
+    }
+
+    /**
+     * Looks up typos of every tenth headword: one letter dropped, one changed and the first two swapped. The answer
+     * must be every headword one edit away, the closest first and otherwise in key order.
+     */
+    private void checkFuzzy(Device device, TreeSet<String> keys) throws Exception {
+        int i = 0;
+        for (String key : keys) {
+            if (i++ % 10 != 0 || key.length() < 3) {
+                continue;
+            }
+            int middle = key.length() / 2;
+            for (String typo : new String[] { key.substring(0, middle) + key.substring(middle + 1),
+                    key.substring(0, middle) + 'z' + key.substring(middle + 1),
+                    key.substring(1, 2) + key.charAt(0) + key.substring(2) }) {
+                if (keys.contains(typo)) {
+                    continue;
+                }
+                final Map<String, Integer> distances = new LinkedHashMap<String, Integer>();
+                for (String candidate : keys) {
+                    int distance = distance(typo, candidate);
+                    if (distance <= 1) {
+                        distances.put(candidate, distance);
+                    }
+                }
+                List<String> expected = new ArrayList<String>(distances.keySet());
+                Collections.sort(expected, new Comparator<String>() {
+                    @Override
+                    public int compare(String a, String b) {
+                        int c = distances.get(a) - distances.get(b);
+                        return c != 0 ? c : a.compareTo(b);
+                    }
+                });
+                List<String> found = device.fuzzy(typo, 1, 32);
+                check(found.equals(expected.subList(0, Math.min(32, expected.size()))),
+                        "fuzzy " + typo + ": " + found + ", expected " + expected);
+            }
+        }
+    }
+
+    /**
+     * Insertions, deletions, substitutions and swaps of neighbours, each one edit, as the device counts them.
+     */
+    private static int distance(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                if (i == 0 || j == 0) {
+                    d[i][j] = i + j;
+                    continue;
+                }
+                d[i][j] = Math.min(Math.min(d[i - 1][j], d[i][j - 1]) + 1,
+                        d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    /**
+     * Compares the headwords matching pattern, in whatever order the automaton walks, with those a regular
+     * expression finds.
+     */
+    private void checkMatch(Device device, TreeSet<String> keys, String pattern) throws Exception {
+        StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            regex.append(c == '?' ? "." : c == '*' ? ".*" : Pattern.quote(String.valueOf(c)));
+        }
+        Pattern p = Pattern.compile(regex.toString());
+        List<String> expected = new ArrayList<String>();
+        for (String key : keys) {
+            if (p.matcher(key).matches()) {
+                expected.add(key);
+            }
+        }
+        List<String> found = new ArrayList<String>(device.match(pattern, keys.size() + 1));
+        check(new HashSet<String>(found).size() == found.size(), "match " + pattern + " repeats headwords");
+        Collections.sort(found);
+        check(found.equals(expected), "match " + pattern + ": " + found + ", expected " + expected);
+    }
+
+    /**
+     * Compares the headwords whose definitions contain all the terms of query with a scan of the definitions. Every
+     * answer then matches the same terms, so they come in key order.
+     */
+    private void checkSearch(Device device, Map<String, String[]> entries, String query) throws Exception {
+        Set<String> terms = terms(query);
+        List<String> expected = new ArrayList<String>();
+        for (String key : new TreeSet<String>(entries.keySet())) {
+            if (terms(entries.get(key)[1]).containsAll(terms)) {
+                expected.add(key);
+            }
+        }
+        List<String> found = device.search(query, entries.size() + 1);
+        check(found.equals(expected), "search " + query + ": " + found + ", expected " + expected);
+    }
+
+    /**
+     * The terms of the converter: runs of two or more letters or digits, folded, and every two neighbouring CJK
+     * characters, or one standing alone. Tags do not count.
+     */
+    private static Set<String> terms(String html) {
+        Set<String> terms = new HashSet<String>();
+        for (String run : html.replaceAll("<[^>]*>", " ").split("[^\\p{L}\\p{N}]+")) {
+            if (run.isEmpty() || !isCjk(run.charAt(0))) {
+                if (run.length() >= 2) {
+                    terms.add(Dictionary.fold(run));
+                }
+            } else if (run.length() == 1) {
+                terms.add(run);
+            } else {
+                for (int i = 0; i + 1 < run.length(); i++) {
+                    terms.add(run.substring(i, i + 2));
+                }
+            }
+        }
+        return terms;
+    }
+
+    private static boolean isCjk(char c) {
+        return Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN;
+    }
+
+    private void check(boolean ok, String what) {
+        checks++;
+        if (!ok && failures++ < 20) {
+            System.out.println("FAILED: " + what);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}